@@ -0,0 +1,92 @@
+package sporemodder.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import sporemodder.file.dbpf.DBPFItem;
+import sporemodder.file.dbpf.DatabasePackedFile;
+import sporemodder.file.dbpf.RefPackCompression;
+import sporemodder.file.filestructures.FileStream;
+
+/**
+ * Generates the data used by the benchmarks. Everything is generated from fixed seeds, so every run (and every commit)
+ * measures exactly the same bytes.
+ */
+public final class BenchmarkData {
+
+	public static final long SEED = 0x5350524FL;
+
+	/** How compressible the generated data is. */
+	public enum Entropy {
+		/** Long runs of a few values, like text or padded tables; compresses very well. */
+		LOW,
+		/** A repeating pattern with some random noise, similar to most game assets. */
+		MEDIUM,
+		/** Random bytes; does not compress at all. */
+		HIGH
+	}
+
+	private BenchmarkData() {
+	}
+
+	public static byte[] generate(int size, Entropy entropy, Random random) {
+		byte[] data = new byte[size];
+		switch (entropy) {
+		case LOW:
+			for (int i = 0; i < size; ) {
+				byte value = (byte) ('a' + random.nextInt(8));
+				int run = Math.min(size - i, 4 + random.nextInt(60));
+				for (int j = 0; j < run; j++) {
+					data[i++] = value;
+				}
+			}
+			break;
+		case MEDIUM:
+			for (int i = 0; i < size; i++) {
+				data[i] = (byte) (random.nextInt(100) < 70 ? (i / 7) % 13 : random.nextInt(256));
+			}
+			break;
+		case HIGH:
+			random.nextBytes(data);
+			break;
+		}
+		return data;
+	}
+
+	public static byte[] compress(byte[] data) throws IOException {
+		RefPackCompression.CompressorOutput output = new RefPackCompression.CompressorOutput();
+		RefPackCompression.compress(data, data.length, output);
+		byte[] compressed = new byte[output.getLength()];
+		System.arraycopy(output.getData(), 0, compressed, 0, compressed.length);
+		return compressed;
+	}
+
+	/**
+	 * Writes a package whose index has the given amount of items. The data of the items is not written, and all of them
+	 * point to the start of the file; this is only meant to read the index.
+	 */
+	public static void writeIndexOnlyPackage(File file, int itemCount, long seed) throws IOException {
+		Random random = new Random(seed);
+		DatabasePackedFile dbpf = new DatabasePackedFile();
+
+		try (FileStream stream = new FileStream(file, "rw")) {
+			stream.setLength(0);
+			dbpf.writeHeader(stream);
+			for (int i = 0; i < itemCount; i++) {
+				DBPFItem item = new DBPFItem();
+				item.name.setGroupID(random.nextInt(64));
+				item.name.setInstanceID(random.nextInt());
+				item.name.setTypeID(random.nextInt(32));
+				item.compressedSize = 1 + random.nextInt(100000);
+				item.memSize = item.compressedSize * 2;
+				item.isCompressed = true;
+				dbpf.index.items.add(item);
+			}
+			dbpf.indexCount = itemCount;
+			dbpf.writeIndex(stream);
+			stream.seek(0);
+			dbpf.writeHeader(stream);
+		}
+	}
+}
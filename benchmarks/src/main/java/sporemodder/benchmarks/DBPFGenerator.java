@@ -0,0 +1,328 @@
+package sporemodder.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import sporemodder.file.dbpf.DBPFConverter;
+import sporemodder.file.dbpf.DBPFItem;
+import sporemodder.file.dbpf.DatabasePackedFile;
+import sporemodder.file.dbpf.RefPackCompression;
+import sporemodder.file.filestructures.FileStream;
+import sporemodder.file.filestructures.MemoryStream;
+import sporemodder.file.filestructures.StreamWriter;
+
+/**
+ * Generates packages with random data and a controlled shape, used to benchmark and test the unpacker without game files.
+ * The output only depends on the settings and the seed, not on the number of threads.
+ * <p>
+ * Items are generated and compressed by several threads, but written in order, and only a few of them are in memory at once;
+ * only the index is kept for the whole package, so packages of several gigabytes can be generated.
+ */
+public class DBPFGenerator {
+
+	/** How the sizes of the items are distributed between the minimum and maximum size. */
+	public static enum SizeDistribution {
+		/** Every size is equally likely. */
+		UNIFORM,
+		/** Every order of magnitude is equally likely, so there are many small items and few big ones, like in game packages. */
+		LOG_UNIFORM
+	}
+
+	/** RefPack stores the decompressed size in 3 bytes, so bigger items are always stored uncompressed. */
+	public static final int MAX_COMPRESSED_ITEM_SIZE = (1 << 24) - 1;
+	/** The biggest offset that a DBPF (not DBBF) package can store. */
+	private static final long MAX_DBPF_OFFSET = 0xFFFFFFFFL;
+	/** Generated data is made of blocks of this size, which are either random or a copy of a repeated pattern. */
+	private static final int BLOCK_SIZE = 64;
+	/** How many items, per thread, can be generated ahead of the one being written. */
+	private static final int ITEMS_AHEAD_PER_THREAD = 4;
+
+	private int itemCount = 1000;
+	private int minItemSize = 64;
+	private int maxItemSize = 1024 * 1024;
+	private SizeDistribution sizeDistribution = SizeDistribution.LOG_UNIFORM;
+	private double compressedRate = 0.5;
+	private double compressionRatio = 0.3;
+	private double duplicateRate = 0;
+	private int groupCount = 16;
+	private int typeCount = 16;
+	private double nestedPackageRate = 0;
+	private int nestedItemCount = 16;
+	private boolean isDBBF;
+	private long seed = 0;
+	private int threads = Runtime.getRuntime().availableProcessors();
+
+	/** Sets how many items the package has, including duplicates and nested packages. */
+	public void setItemCount(int itemCount) {
+		this.itemCount = itemCount;
+	}
+
+	/** Sets the range of the uncompressed size of the items, both inclusive. */
+	public void setItemSizes(int minItemSize, int maxItemSize) {
+		if (minItemSize < 0 || maxItemSize < minItemSize) {
+			throw new IllegalArgumentException("Invalid item size range: " + minItemSize + " - " + maxItemSize);
+		}
+		this.minItemSize = minItemSize;
+		this.maxItemSize = maxItemSize;
+	}
+
+	public void setSizeDistribution(SizeDistribution sizeDistribution) {
+		this.sizeDistribution = sizeDistribution;
+	}
+
+	/** Sets the fraction of items, between 0 and 1, that are stored compressed. */
+	public void setCompressedRate(double compressedRate) {
+		this.compressedRate = compressedRate;
+	}
+
+	/**
+	 * Sets how much the generated data can be compressed, as the approximate compressed size divided by the uncompressed size:
+	 * 0 generates data that compresses almost completely, and 1 generates random data that cannot be compressed.
+	 */
+	public void setCompressionRatio(double compressionRatio) {
+		this.compressionRatio = compressionRatio;
+	}
+
+	/** Sets the fraction of items, between 0 and 1, that use the same resource key as a previous item. */
+	public void setDuplicateRate(double duplicateRate) {
+		this.duplicateRate = duplicateRate;
+	}
+
+	/** Sets how many different group IDs (folders) are used by the items. */
+	public void setGroupCount(int groupCount) {
+		this.groupCount = Math.max(1, groupCount);
+	}
+
+	/** Sets how many different type IDs (extensions) are used by the items, not counting nested packages. */
+	public void setTypeCount(int typeCount) {
+		this.typeCount = Math.max(1, typeCount);
+	}
+
+	/**
+	 * Sets the fraction of items, between 0 and 1, that are packages themselves, using the {@link DBPFConverter#TYPE_ID} type.
+	 * Nested packages are generated with the same settings as this one, but they have {@link #setNestedItemCount(int)} items
+	 * and do not contain more nested packages.
+	 */
+	public void setNestedPackageRate(double nestedPackageRate) {
+		this.nestedPackageRate = nestedPackageRate;
+	}
+
+	/** Sets how many items every nested package has. */
+	public void setNestedItemCount(int nestedItemCount) {
+		this.nestedItemCount = nestedItemCount;
+	}
+
+	/** Sets whether a DBBF package, which supports 64-bit offsets, is generated. DBPF packages cannot be bigger than 4 GB. */
+	public void setDBBF(boolean isDBBF) {
+		this.isDBBF = isDBBF;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/** Sets how many threads generate and compress item data. This does not change the generated package. */
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Generates a package into the given file, replacing it if it exists.
+	 * @return The header of the generated package, including its index.
+	 */
+	public DatabasePackedFile generate(File file) throws IOException, InterruptedException {
+		try (FileStream stream = new FileStream(file, "rw")) {
+			stream.setLength(0);
+			return generate(stream);
+		}
+	}
+
+	/**
+	 * Generates a package into the given stream. The package starts at the base offset of the stream, since the offsets
+	 * stored in a package are relative to its beginning.
+	 * @return The header of the generated package, including its index.
+	 */
+	public DatabasePackedFile generate(StreamWriter stream) throws IOException, InterruptedException {
+		DatabasePackedFile dbpf = new DatabasePackedFile();
+		dbpf.isDBBF = isDBBF;
+
+		// Written again at the end, once the index position is known
+		stream.seek(0);
+		dbpf.writeHeader(stream);
+
+		Random random = new Random(seed);
+		int[] groups = createIDs(random, groupCount);
+		int[] types = createIDs(random, typeCount);
+		int instanceBase = random.nextInt();
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "dbpf-generator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+			ArrayDeque<DBPFItem> pendingItems = new ArrayDeque<>();
+
+			for (int i = 0; i < itemCount; i++) {
+				DBPFItem item = new DBPFItem();
+				boolean nestedPackage = random.nextDouble() < nestedPackageRate;
+
+				if (i > 0 && random.nextDouble() < duplicateRate) {
+					DBPFItem original = dbpf.index.items.get(random.nextInt(dbpf.index.items.size()));
+					item.name.copy(original.name);
+					nestedPackage = original.name.getTypeID() == DBPFConverter.TYPE_ID;
+				}
+				else {
+					item.name.setGroupID(groups[random.nextInt(groups.length)]);
+					// Multiplying by an odd number is a bijection, so instance IDs never repeat
+					item.name.setInstanceID(instanceBase + i * 0x9E3779B9);
+					item.name.setTypeID(nestedPackage ? DBPFConverter.TYPE_ID : types[random.nextInt(types.length)]);
+				}
+				boolean isNested = nestedPackage;
+
+				int size = nextSize(random);
+				item.isCompressed = random.nextDouble() < compressedRate;
+				long dataSeed = random.nextLong();
+
+				dbpf.index.items.add(item);
+				pendingItems.add(item);
+				pending.add(executor.submit(() -> pack(item, isNested ? generateNestedPackage(dataSeed) : generateData(size, compressionRatio, new Random(dataSeed)))));
+
+				if (pending.size() >= threads * ITEMS_AHEAD_PER_THREAD) {
+					writeItem(stream, pendingItems.poll(), pending.poll());
+				}
+			}
+			while (!pending.isEmpty()) {
+				writeItem(stream, pendingItems.poll(), pending.poll());
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		// The index is written to memory first: it has many small fields and the stream might not be buffered
+		MemoryStream indexStream = new MemoryStream();
+		dbpf.indexCount = dbpf.index.items.size();
+		dbpf.writeIndex(indexStream);
+		dbpf.indexOffset = stream.getFilePointer();
+		checkOffset(dbpf.indexOffset + dbpf.indexSize);
+		indexStream.writeInto(stream);
+
+		long endOffset = stream.getFilePointer();
+		stream.seek(0);
+		dbpf.writeHeader(stream);
+		stream.seek(endOffset);
+
+		return dbpf;
+	}
+
+	private static int[] createIDs(Random random, int count) {
+		int[] ids = new int[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = random.nextInt();
+		}
+		return ids;
+	}
+
+	private int nextSize(Random random) {
+		if (sizeDistribution == SizeDistribution.LOG_UNIFORM && maxItemSize > 0) {
+			double min = Math.log(Math.max(1, minItemSize));
+			double max = Math.log(maxItemSize + 1.0);
+			return (int) Math.min(maxItemSize, Math.max(minItemSize, Math.exp(min + random.nextDouble() * (max - min))));
+		}
+		else {
+			return minItemSize + (int) (random.nextDouble() * (maxItemSize - minItemSize + 1.0));
+		}
+	}
+
+	private void writeItem(StreamWriter stream, DBPFItem item, Future<byte[]> data) throws IOException, InterruptedException {
+		byte[] raw;
+		try {
+			raw = data.get();
+		}
+		catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+		}
+
+		item.chunkOffset = stream.getFilePointer();
+		item.compressedSize = raw.length;
+		checkOffset(item.chunkOffset + raw.length);
+		stream.write(raw);
+	}
+
+	private void checkOffset(long offset) throws IOException {
+		if (!isDBBF && offset > MAX_DBPF_OFFSET) {
+			throw new IOException("The package is too big for the DBPF format, a DBBF package must be generated instead");
+		}
+	}
+
+	/** Generates the contents of a nested package item. */
+	private byte[] generateNestedPackage(long dataSeed) throws IOException, InterruptedException {
+		DBPFGenerator nested = new DBPFGenerator();
+		nested.itemCount = nestedItemCount;
+		nested.minItemSize = minItemSize;
+		nested.maxItemSize = maxItemSize;
+		nested.sizeDistribution = sizeDistribution;
+		nested.compressedRate = compressedRate;
+		nested.compressionRatio = compressionRatio;
+		nested.duplicateRate = duplicateRate;
+		nested.groupCount = groupCount;
+		nested.typeCount = typeCount;
+		nested.seed = dataSeed;
+		nested.threads = 1;
+
+		MemoryStream stream = new MemoryStream();
+		nested.generate(stream);
+		return stream.toByteArray();
+	}
+
+	/**
+	 * Returns the bytes that are stored in the package for the given data, and sets the memory size of the item.
+	 * Items marked as compressed that are too big for RefPack are stored uncompressed.
+	 */
+	private static byte[] pack(DBPFItem item, byte[] data) throws IOException {
+		item.memSize = data.length;
+		if (item.isCompressed && data.length > MAX_COMPRESSED_ITEM_SIZE) {
+			item.isCompressed = false;
+		}
+		if (!item.isCompressed) {
+			return data;
+		}
+
+		RefPackCompression.CompressorOutput output = new RefPackCompression.CompressorOutput();
+		RefPackCompression.compress(data, data.length, output);
+		byte[] compressed = new byte[output.getLength()];
+		System.arraycopy(output.getData(), 0, compressed, 0, compressed.length);
+		return compressed;
+	}
+
+	/**
+	 * Generates data that compresses to approximately the given ratio. The data is made of blocks that are either random
+	 * or a copy of a small pattern that is repeated through the item.
+	 */
+	public static byte[] generateData(int size, double compressionRatio, Random random) {
+		byte[] data = new byte[size];
+		byte[] pattern = new byte[BLOCK_SIZE * 4];
+		random.nextBytes(pattern);
+
+		byte[] block = new byte[BLOCK_SIZE];
+		for (int offset = 0; offset < size; offset += BLOCK_SIZE) {
+			int length = Math.min(BLOCK_SIZE, size - offset);
+			if (random.nextDouble() < compressionRatio) {
+				random.nextBytes(block);
+				System.arraycopy(block, 0, data, offset, length);
+			}
+			else {
+				System.arraycopy(pattern, (offset / BLOCK_SIZE % 4) * BLOCK_SIZE, data, offset, length);
+			}
+		}
+		return data;
+	}
+}
@@ -0,0 +1,70 @@
+package sporemodder.benchmarks;
+
+import java.io.File;
+
+import sporemodder.file.dbpf.DatabasePackedFile;
+
+/**
+ * Command line entry point for {@link DBPFGenerator}, used to create packages for load tests:
+ * <pre>java -cp benchmarks.jar sporemodder.benchmarks.GeneratePackage [options] &lt;output&gt;</pre>
+ */
+public class GeneratePackage {
+
+	private static final String USAGE = "usage: GeneratePackage [--items N] [--min-size BYTES] [--max-size BYTES] [--uniform] "
+			+ "[--compressed RATE] [--ratio RATIO] [--duplicates RATE] [--groups N] [--types N] "
+			+ "[--nested RATE] [--nested-items N] [--dbbf] [--seed N] [--threads N] <output>";
+
+	public static void main(String[] args) throws Exception {
+		DBPFGenerator generator = new DBPFGenerator();
+		int minSize = 64;
+		int maxSize = 1024 * 1024;
+		File output = null;
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			switch (arg) {
+			case "--items": generator.setItemCount(Integer.parseInt(value(args, ++i))); break;
+			case "--min-size": minSize = Integer.parseInt(value(args, ++i)); break;
+			case "--max-size": maxSize = Integer.parseInt(value(args, ++i)); break;
+			case "--uniform": generator.setSizeDistribution(DBPFGenerator.SizeDistribution.UNIFORM); break;
+			case "--compressed": generator.setCompressedRate(Double.parseDouble(value(args, ++i))); break;
+			case "--ratio": generator.setCompressionRatio(Double.parseDouble(value(args, ++i))); break;
+			case "--duplicates": generator.setDuplicateRate(Double.parseDouble(value(args, ++i))); break;
+			case "--groups": generator.setGroupCount(Integer.parseInt(value(args, ++i))); break;
+			case "--types": generator.setTypeCount(Integer.parseInt(value(args, ++i))); break;
+			case "--nested": generator.setNestedPackageRate(Double.parseDouble(value(args, ++i))); break;
+			case "--nested-items": generator.setNestedItemCount(Integer.parseInt(value(args, ++i))); break;
+			case "--dbbf": generator.setDBBF(true); break;
+			case "--seed": generator.setSeed(Long.parseLong(value(args, ++i))); break;
+			case "--threads": generator.setThreads(Integer.parseInt(value(args, ++i))); break;
+			default:
+				if (arg.startsWith("-") || output != null) {
+					exitWithUsage("unexpected argument: " + arg);
+				}
+				output = new File(arg);
+			}
+		}
+		if (output == null) {
+			exitWithUsage("no output file provided");
+		}
+		generator.setItemSizes(minSize, maxSize);
+
+		long initialTime = System.currentTimeMillis();
+		DatabasePackedFile dbpf = generator.generate(output);
+		System.out.println("Generated " + dbpf.indexCount + " items, " + output.length() + " bytes in "
+				+ (System.currentTimeMillis() - initialTime) + " ms");
+	}
+
+	private static String value(String[] args, int index) {
+		if (index >= args.length) {
+			exitWithUsage("missing value for " + args[index - 1]);
+		}
+		return args[index];
+	}
+
+	private static void exitWithUsage(String error) {
+		System.err.println("  error: " + error);
+		System.err.println("  " + USAGE);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,32 @@
+package sporemodder.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sporemodder.HashManager;
+
+/**
+ * Measures loading the registries with {@link HashManager#initialize()}, including the full reg_file.txt.
+ * The registries are read from the folder of the benchmarks jar, where the build copies them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HashManagerBenchmark {
+
+	@Benchmark
+	public HashManager initialize() {
+		HashManager hasher = new HashManager();
+		hasher.initialize();
+		return hasher;
+	}
+}
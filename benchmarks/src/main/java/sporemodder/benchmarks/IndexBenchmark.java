@@ -0,0 +1,72 @@
+package sporemodder.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sporemodder.file.dbpf.DBPFIndex;
+import sporemodder.file.dbpf.DatabasePackedFile;
+import sporemodder.file.filestructures.FileStream;
+import sporemodder.file.filestructures.MappedFileStream;
+import sporemodder.file.filestructures.StreamReader;
+
+/**
+ * Measures how long it takes to read the index of a package with {@link DBPFIndex#readItems(StreamReader, int, boolean)},
+ * both with a plain file stream and with a memory-mapped one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class IndexBenchmark {
+
+	@Param({"10000", "100000"})
+	public int itemCount;
+
+	@Param({"file", "mapped"})
+	public String stream;
+
+	private File file;
+	private StreamReader in;
+	private DatabasePackedFile header;
+
+	@Setup
+	public void setup() throws IOException {
+		file = File.createTempFile("index-benchmark", ".package");
+		BenchmarkData.writeIndexOnlyPackage(file, itemCount, BenchmarkData.SEED);
+
+		in = stream.equals("mapped") ? new MappedFileStream(file) : new FileStream(file, "r");
+		header = new DatabasePackedFile();
+		header.readHeader(in);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		in.close();
+		file.delete();
+	}
+
+	@Benchmark
+	public DBPFIndex readItems() throws IOException {
+		DBPFIndex index = new DBPFIndex();
+		in.seek(header.indexOffset);
+		index.read(in);
+		index.readItems(in, header.indexCount, header.isDBBF);
+		return index;
+	}
+}
@@ -0,0 +1,70 @@
+package sporemodder.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import sporemodder.HashManager;
+import sporemodder.PathManager;
+import sporemodder.util.NameRegistry;
+
+/**
+ * Measures looking up names in the full reg_file.txt with {@link NameRegistry#getName(int)}, which is done several times
+ * for every unpacked item. Half of the hashes have a name and half do not. Run it with <code>-prof gc</code> to see
+ * the allocations of each lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class NameRegistryBenchmark {
+
+	private static final int LOOKUPS = 4096;
+
+	private NameRegistry registry;
+	private int[] hashes;
+
+	@Setup
+	public void setup() throws IOException {
+		HashManager hasher = new HashManager();
+		PathManager pathManager = new PathManager();
+		pathManager.initialize();
+		registry = new NameRegistry(hasher, "File Names", "reg_file.txt");
+		registry.read(pathManager.getProgramFile("reg_file.txt"));
+
+		Random random = new Random(BenchmarkData.SEED);
+		hashes = new int[LOOKUPS];
+		int count = 0;
+		for (String name : registry.getNames()) {
+			if (count < LOOKUPS / 2 && random.nextInt(20) == 0) {
+				hashes[count++] = hasher.fnvHash(name);
+			}
+		}
+		while (count < LOOKUPS) {
+			hashes[count++] = random.nextInt();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void getName(Blackhole blackhole) {
+		for (int hash : hashes) {
+			blackhole.consume(registry.getName(hash));
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package sporemodder.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import sporemodder.file.dbpf.RefPackCompression;
+
+/**
+ * Measures the RefPack compressor and decompressor over item sizes found in game packages, from small
+ * property files to big textures, with data of different entropy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RefPackBenchmark {
+
+	@Param({"4096", "65536", "1048576"})
+	public int size;
+
+	@Param({"LOW", "MEDIUM", "HIGH"})
+	public BenchmarkData.Entropy entropy;
+
+	private byte[] data;
+	private byte[] compressed;
+	private byte[] decompressed;
+
+	@Setup
+	public void setup() throws IOException {
+		data = BenchmarkData.generate(size, entropy, new Random(BenchmarkData.SEED));
+		compressed = BenchmarkData.compress(data);
+		decompressed = new byte[size];
+	}
+
+	@Benchmark
+	public byte[] decompressFast() throws IOException {
+		RefPackCompression.decompressFast(compressed, decompressed);
+		return decompressed;
+	}
+
+	@Benchmark
+	public RefPackCompression.CompressorOutput compress() throws IOException {
+		RefPackCompression.CompressorOutput output = new RefPackCompression.CompressorOutput();
+		RefPackCompression.compress(data, data.length, output);
+		return output;
+	}
+}
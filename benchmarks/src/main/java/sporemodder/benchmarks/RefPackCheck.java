@@ -0,0 +1,198 @@
+package sporemodder.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import sporemodder.file.dbpf.RefPackCompression;
+import sporemodder.file.dbpf.RefPackInputStream;
+
+/**
+ * Checks that every RefPack decoder gives the same bytes as {@link RefPackCompression#decompressFast(byte[], byte[])}:
+ * the array decoder at an offset, the {@link ByteBuffer} decoder with heap and direct buffers, and {@link RefPackInputStream}.
+ * The data is random, from a fixed seed, with sizes bigger than the window of the stream and patterns that produce long
+ * overlapping back-references. It also checks that a destination buffer that is too small is rejected without writing past its limit.
+ * <pre>java -cp benchmarks.jar sporemodder.benchmarks.RefPackCheck [--rounds N] [--seed N]</pre>
+ */
+public class RefPackCheck {
+
+	private static final int MAX_SIZE = 3 * RefPackInputStream.WINDOW_SIZE;
+	/** Written around the decompressed data to find writes outside of it. */
+	private static final byte GUARD = (byte) 0xA5;
+
+	public static void main(String[] args) throws Exception {
+		int rounds = 200;
+		long seed = BenchmarkData.SEED;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--rounds": rounds = Integer.parseInt(args[++i]); break;
+			case "--seed": seed = Long.parseLong(args[++i]); break;
+			default:
+				System.err.println("  usage: RefPackCheck [--rounds N] [--seed N]");
+				System.exit(1);
+			}
+		}
+
+		Random random = new Random(seed);
+		int failures = 0;
+		for (int round = 0; round < rounds; round++) {
+			int size = randomSize(random);
+			byte[] data = random.nextInt(4) == 0 ? generatePeriodic(size, random)
+					: BenchmarkData.generate(size, BenchmarkData.Entropy.values()[random.nextInt(3)], random);
+			try {
+				check(data, random);
+			}
+			catch (Exception | AssertionError e) {
+				failures++;
+				System.err.println("Round " + round + ", " + size + " bytes: " + e);
+			}
+		}
+
+		if (failures > 0) {
+			System.err.println(failures + " of " + rounds + " rounds failed");
+			System.exit(1);
+		}
+		System.out.println("All " + rounds + " rounds passed");
+	}
+
+	/** Mostly small sizes, like most items, but also some that are bigger than the window of the stream decoder. */
+	private static int randomSize(Random random) {
+		switch (random.nextInt(3)) {
+		case 0: return 1 + random.nextInt(64);
+		case 1: return 1 + random.nextInt(64 * 1024);
+		default: return 1 + random.nextInt(MAX_SIZE);
+		}
+	}
+
+	/** Repeats a short random pattern, which is compressed into back-references that overlap the bytes they write. */
+	private static byte[] generatePeriodic(int size, Random random) {
+		byte[] pattern = new byte[1 + random.nextInt(16)];
+		random.nextBytes(pattern);
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = random.nextInt(1000) == 0 ? (byte) random.nextInt(256) : pattern[i % pattern.length];
+		}
+		return data;
+	}
+
+	private static void check(byte[] data, Random random) throws IOException {
+		byte[] compressed = BenchmarkData.compress(data);
+
+		byte[] expected = new byte[data.length];
+		RefPackCompression.decompressFast(compressed, expected);
+		assertEquals("decompressFast", data, expected);
+
+		// Array decoder, with the data in the middle of bigger arrays
+		int srcOff = random.nextInt(16);
+		int dstOff = random.nextInt(16);
+		byte[] src = new byte[srcOff + compressed.length];
+		System.arraycopy(compressed, 0, src, srcOff, compressed.length);
+		byte[] dst = new byte[dstOff + data.length + 16];
+		Arrays.fill(dst, GUARD);
+		int written = RefPackCompression.decompress(src, srcOff, compressed.length, dst, dstOff);
+		if (written != data.length) {
+			throw new AssertionError("array decoder wrote " + written + " bytes, expected " + data.length);
+		}
+		assertEquals("array decoder", expected, Arrays.copyOfRange(dst, dstOff, dstOff + data.length));
+		assertGuard("array decoder", dst, 0, dstOff);
+		assertGuard("array decoder", dst, dstOff + data.length, dst.length);
+
+		checkBuffer("heap buffers", ByteBuffer.wrap(compressed), ByteBuffer.allocate(data.length + 16), expected);
+		checkBuffer("direct buffers", directCopy(compressed), ByteBuffer.allocateDirect(data.length + 16), expected);
+		checkBuffer("heap to direct", ByteBuffer.wrap(compressed), ByteBuffer.allocateDirect(data.length + 16), expected);
+
+		checkTooSmall("heap buffers", ByteBuffer.wrap(compressed), ByteBuffer.allocate(data.length + 16), data.length);
+		checkTooSmall("direct buffers", directCopy(compressed), ByteBuffer.allocateDirect(data.length + 16), data.length);
+
+		// The stream decoder, read in chunks of random sizes and some single bytes
+		try (InputStream in = new RefPackInputStream(new ByteArrayInputStream(compressed))) {
+			byte[] streamed = new byte[data.length];
+			int position = 0;
+			while (position < streamed.length) {
+				if (random.nextInt(8) == 0) {
+					int b = in.read();
+					if (b == -1) break;
+					streamed[position++] = (byte) b;
+				}
+				else {
+					int count = in.read(streamed, position, Math.min(streamed.length - position, 1 + random.nextInt(8192)));
+					if (count == -1) break;
+					position += count;
+				}
+			}
+			if (position != streamed.length || in.read() != -1) {
+				throw new AssertionError("stream decoder returned " + position + " bytes, expected " + data.length);
+			}
+			assertEquals("stream decoder", expected, streamed);
+		}
+	}
+
+	private static void checkBuffer(String name, ByteBuffer src, ByteBuffer dst, byte[] expected) throws IOException {
+		fill(dst, GUARD);
+		dst.position(8).limit(8 + expected.length);
+		int written = RefPackCompression.decompress(src, dst);
+		if (written != expected.length || dst.position() != 8 + expected.length || src.hasRemaining()) {
+			throw new AssertionError(name + ": wrong positions after decoding");
+		}
+		byte[] actual = new byte[expected.length];
+		dst.position(8);
+		dst.get(actual);
+		assertEquals(name, expected, actual);
+		assertGuard(name, dst, 0, 8);
+		assertGuard(name, dst, 8 + expected.length, dst.capacity());
+	}
+
+	/** The destination has space for one byte less than needed: the decoder must fail, and leave the bytes after the limit alone. */
+	private static void checkTooSmall(String name, ByteBuffer src, ByteBuffer dst, int size) {
+		fill(dst, GUARD);
+		dst.position(0).limit(size - 1);
+		try {
+			RefPackCompression.decompress(src, dst);
+			throw new AssertionError(name + ": a destination that is too small was accepted");
+		}
+		catch (IOException e) {
+			// Expected
+		}
+		assertGuard(name + " (too small)", dst, size - 1, dst.capacity());
+	}
+
+	private static ByteBuffer directCopy(byte[] data) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data).flip();
+		return buffer;
+	}
+
+	private static void fill(ByteBuffer buffer, byte value) {
+		buffer.clear();
+		for (int i = 0; i < buffer.capacity(); i++) {
+			buffer.put(i, value);
+		}
+	}
+
+	private static void assertEquals(String name, byte[] expected, byte[] actual) {
+		int mismatch = Arrays.mismatch(expected, actual);
+		if (mismatch != -1) {
+			throw new AssertionError(name + " differs at byte " + mismatch);
+		}
+	}
+
+	private static void assertGuard(String name, byte[] array, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (array[i] != GUARD) {
+				throw new AssertionError(name + " wrote outside of the destination, at byte " + i);
+			}
+		}
+	}
+
+	private static void assertGuard(String name, ByteBuffer buffer, int from, int to) {
+		buffer.clear();
+		for (int i = from; i < to; i++) {
+			if (buffer.get(i) != GUARD) {
+				throw new AssertionError(name + " wrote outside of the destination, at byte " + i);
+			}
+		}
+	}
+}
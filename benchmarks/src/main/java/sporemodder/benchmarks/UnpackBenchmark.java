@@ -0,0 +1,82 @@
+package sporemodder.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import sporemodder.LoggerManager;
+import sporemodder.file.dbpf.DBPFConverter;
+import sporemodder.file.dbpf.DBPFUnpacker;
+
+/**
+ * Measures a whole {@link DBPFUnpacker#call()} over a synthetic package, from loading the registries to decompressing
+ * every item. The items are given to a sink that discards them, so the disk is not part of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class UnpackBenchmark {
+
+	@Param({"2000"})
+	public int itemCount;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private File packageFile;
+	private File outputFolder;
+
+	@Setup
+	public void setup() throws IOException, InterruptedException {
+		LoggerManager.initialize(false);
+
+		packageFile = File.createTempFile("unpack-benchmark", ".package");
+		DBPFGenerator generator = new DBPFGenerator();
+		generator.setItemCount(itemCount);
+		generator.setItemSizes(16, 256 * 1024);
+		generator.setSeed(BenchmarkData.SEED);
+		generator.generate(packageFile);
+		outputFolder = Files.createTempDirectory("unpack-benchmark").toFile();
+	}
+
+	@TearDown
+	public void tearDown() {
+		packageFile.delete();
+		outputFolder.delete();
+	}
+
+	@Benchmark
+	public void unpack(Blackhole blackhole) throws Exception {
+		DBPFUnpacker unpacker = new DBPFUnpacker(packageFile, outputFolder, List.of(new DBPFConverter()));
+		unpacker.setThreads(threads);
+		// The sink is called from the writer threads, so it only adds up the sizes
+		LongAdder unpackedBytes = new LongAdder();
+		unpacker.setItemSink((item, data) -> unpackedBytes.add(data.length()));
+
+		Exception exception = unpacker.call();
+		if (exception != null) {
+			throw exception;
+		}
+		blackhole.consume(unpackedBytes.sum());
+	}
+}
@@ -19,6 +19,8 @@
 
 package sporemodder;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.HashMap;
@@ -26,6 +28,7 @@ import java.util.Locale;
 import java.util.Properties;
 
 import sporemodder.util.NameRegistry;
+import sporemodder.util.NameRegistrySnapshot;
 
 /**
  * A class used to control hashes (hexadecimal 32-bit integers used as IDs) and everything related to them,
@@ -33,11 +36,30 @@ import sporemodder.util.NameRegistry;
  */
 public class HashManager {
 	
+	/** The hash manager shared by the whole program, see {@link #get()}. */
+	private static volatile HashManager sharedInstance;
+	
 	/**
-	 * Returns the current instance of the HashManager class.
+	 * Returns the hash manager shared by the whole program. Each of its registries is read the first time it is used, and never
+	 * modified afterwards, so it can be used by any number of threads at the same time. It has no project registry:
+	 * to use the names of a package, create a hash manager on top of it with {@link #HashManager(HashManager)}, which is cheap.
+	 * <p>
+	 * If a registry is corrupt or missing, the methods that use it throw a <code>RuntimeException</code>.
 	 */
 	public static HashManager get() {
-		return null;
+		HashManager instance = sharedInstance;
+		if (instance == null) {
+			synchronized (HashManager.class) {
+				instance = sharedInstance;
+				if (instance == null) {
+					instance = new HashManager();
+					instance.initialize();
+					instance.isShared = true;
+					sharedInstance = instance;
+				}
+			}
+		}
+		return instance;
 	}
 
 	/** The symbols used to print floating point values. This decides the decimal separator: we must always use '.' to avoid language problems. */
@@ -55,7 +77,7 @@ public class HashManager {
 	private final NameRegistry originalPropRegistry = new NameRegistry(this, "Properties", "reg_property.txt");
 	
 	/** The registry used to look for simulator attribute IDs; it is read from reg_simulator.txt */
-	private final NameRegistry simulatorRegistry = new NameRegistry(this, "Simulator Attributes", "reg_simulator.txt");
+	private NameRegistry simulatorRegistry = new NameRegistry(this, "Simulator Attributes", "reg_simulator.txt");
 	
 	/** The registry used to look for instance and group IDs; it is read from reg_file.txt */
 	private NameRegistry fileRegistry = originalFileRegistry;
@@ -73,6 +95,35 @@ public class HashManager {
 
 	private final HashMap<String, NameRegistry> registries = new HashMap<String, NameRegistry>();
 	
+	/** Whether this is the instance returned by {@link #get()}, which cannot be modified. */
+	private boolean isShared;
+	
+	public HashManager() {
+	}
+	
+	/**
+	 * Creates a hash manager that uses the registries of another one, which must be initialized, instead of reading them again.
+	 * Only the project registry is its own, so several hash managers created from the same one can be used by different threads,
+	 * as long as the shared registries are not modified. This does not need to be initialized.
+	 * @param base The hash manager whose registries are used.
+	 */
+	public HashManager(HashManager base) {
+		decimalSymbols = base.decimalSymbols;
+		decimalFormat = base.decimalFormat;
+		defaultDecimalFormat = (DecimalFormat) base.defaultDecimalFormat.clone();
+		
+		fileRegistry = base.fileRegistry;
+		typeRegistry = base.typeRegistry;
+		propRegistry = base.propRegistry;
+		simulatorRegistry = base.simulatorRegistry;
+		
+		registries.put(fileRegistry.getFileName(), fileRegistry);
+		registries.put(typeRegistry.getFileName(), typeRegistry);
+		registries.put(propRegistry.getFileName(), propRegistry);
+		registries.put(simulatorRegistry.getFileName(), simulatorRegistry);
+		registries.put(projectRegistry.getFileName(), projectRegistry);
+	}
+	
 	public void initialize() {
 		decimalSymbols = new DecimalFormatSymbols(Locale.getDefault());
 		decimalSymbols.setDecimalSeparator('.');
@@ -80,29 +131,13 @@ public class HashManager {
 		defaultDecimalFormat = new DecimalFormat(decimalFormat, decimalSymbols);
 		defaultDecimalFormat.setNegativePrefix("-");
 
+		// The registries are only read when they are used, most programs never need the property and simulator registries
 		PathManager pathManager = new PathManager();
 		pathManager.initialize();
-		try {
-			fileRegistry.read(pathManager.getProgramFile(fileRegistry.getFileName()));
-		} catch (Exception e) {
-			throw new RuntimeException("The file name registry (reg_file.txt) is corrupt or missing.");
-		}
-		try {
-			typeRegistry.read(pathManager.getProgramFile(typeRegistry.getFileName()));
-		} catch (Exception e) {
-			throw new RuntimeException("The types registry (reg_type.txt) is corrupt or missing.");
-		}
-		try {
-			propRegistry.read(pathManager.getProgramFile(propRegistry.getFileName()));
-		} catch (Exception e) {
-			throw new RuntimeException("The property registry (reg_property.txt) is corrupt or missing.");
-		}
-		try {
-			simulatorRegistry.read(pathManager.getProgramFile(simulatorRegistry.getFileName()));
-			simulatorRegistry.read(pathManager.getProgramFile("reg_simulator_stub.txt"));
-		} catch (Exception e) {
-			throw new RuntimeException("The simulator attributes registry (reg_simulator.txt or reg_simulator_stub.txt) is corrupt or missing.");
-		}
+		setRegistryLoader(pathManager, fileRegistry, "The file name registry (reg_file.txt) is corrupt or missing.");
+		setRegistryLoader(pathManager, typeRegistry, "The types registry (reg_type.txt) is corrupt or missing.");
+		setRegistryLoader(pathManager, propRegistry, "The property registry (reg_property.txt) is corrupt or missing.");
+		setRegistryLoader(pathManager, simulatorRegistry, "The simulator attributes registry (reg_simulator.txt or reg_simulator_stub.txt) is corrupt or missing.");
 
         registries.put(fileRegistry.getFileName(), fileRegistry);
 		registries.put(typeRegistry.getFileName(), typeRegistry);
@@ -111,7 +146,72 @@ public class HashManager {
 		registries.put(projectRegistry.getFileName(), projectRegistry);
 	}
 
+	/** Makes the registry read itself the first time it is used; if it cannot be read, using it throws an exception with the given message. */
+	private void setRegistryLoader(PathManager pathManager, NameRegistry registry, String errorMessage) {
+		registry.setLoader(r -> {
+			try {
+				readRegistry(pathManager, r);
+			} catch (Exception e) {
+				throw new RuntimeException(errorMessage, e);
+			}
+		});
+	}
+	
+	/** Returns the text files that are read into the given registry, in order. */
+	private String[] getRegistryFiles(NameRegistry registry) {
+		if (registry == simulatorRegistry) {
+			return new String[] {simulatorRegistry.getFileName(), "reg_simulator_stub.txt"};
+		}
+		return new String[] {registry.getFileName()};
+	}
+	
+	/**
+	 * Reads a registry from its snapshot if there is one newer than its text files, or from the text files otherwise.
+	 */
+	private void readRegistry(PathManager pathManager, NameRegistry registry) throws IOException {
+		String[] fileNames = getRegistryFiles(registry);
+		File[] files = new File[fileNames.length];
+		for (int i = 0; i < files.length; i++) {
+			files[i] = pathManager.getProgramFile(fileNames[i]);
+		}
+		
+		File snapshotFile = pathManager.getProgramFile(NameRegistrySnapshot.getSnapshotName(registry.getFileName()));
+		if (NameRegistrySnapshot.isUpToDate(snapshotFile, files)) {
+			try {
+				registry.setSnapshot(NameRegistrySnapshot.open(snapshotFile));
+				return;
+			} catch (IOException e) {
+				// A damaged snapshot is ignored, the text files are read instead
+			}
+		}
+		for (File file : files) {
+			registry.read(file);
+		}
+	}
+	
+	/**
+	 * Reads the text registries in the given folder and writes their snapshots next to them, so they are loaded faster
+	 * the next time. This is done by the build, see {@link NameRegistrySnapshot#main(String[])}.
+	 * @param folder The folder with the text registries.
+	 */
+	public void writeRegistrySnapshots(File folder) throws IOException {
+		for (NameRegistry base : new NameRegistry[] {originalFileRegistry, originalTypeRegistry, originalPropRegistry, simulatorRegistry}) {
+			NameRegistry registry = new NameRegistry(this, base.getDescription(), base.getFileName());
+			for (String fileName : getRegistryFiles(base)) {
+				registry.read(new File(folder, fileName));
+			}
+			NameRegistrySnapshot.write(registry, new File(folder, NameRegistrySnapshot.getSnapshotName(base.getFileName())));
+		}
+	}
+
+	/**
+	 * Returns the registry with the names used by a project or package, which are used on top of the file registry.
+	 * @throws IllegalStateException If this is the shared hash manager returned by {@link #get()}.
+	 */
 	public NameRegistry getProjectRegistry() {
+		if (isShared) {
+			throw new IllegalStateException("The shared hash manager cannot be modified, use new HashManager(HashManager.get())");
+		}
 		return projectRegistry;
 	}
 
@@ -138,7 +238,7 @@ public class HashManager {
 	 * @return
 	 */
 	public String hexToString(int num) {
-		return "0x" + String.format("%8s", Integer.toHexString(num)).replace(' ', '0');
+		return toHexString(num, LOWER_HEX_DIGITS);
 	}
 	
 	/**
@@ -147,7 +247,22 @@ public class HashManager {
 	 * @return
 	 */
 	public String hexToStringUC(int num) {
-		return "0x" + String.format("%8s", Integer.toHexString(num).toUpperCase()).replace(' ', '0');
+		return toHexString(num, UPPER_HEX_DIGITS);
+	}
+	
+	private static final char[] LOWER_HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final char[] UPPER_HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	
+	/** Writes the number as <code>0x</code> followed by 8 digits; this is called for every unnamed ID, so it avoids String.format. */
+	private static String toHexString(int num, char[] digits) {
+		char[] chars = new char[10];
+		chars[0] = '0';
+		chars[1] = 'x';
+		for (int i = 9; i >= 2; i--) {
+			chars[i] = digits[num & 0xF];
+			num >>>= 4;
+		}
+		return new String(chars);
 	}
 	
 	/**
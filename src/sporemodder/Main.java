@@ -1,11 +1,22 @@
 package sporemodder;
 
 import sporemodder.file.Converter;
+import sporemodder.file.dbpf.DBPFBatchUnpacker;
 import sporemodder.file.dbpf.DBPFConverter;
+import sporemodder.file.dbpf.DBPFItemSelector;
+import sporemodder.file.dbpf.DBPFLister;
 import sporemodder.file.dbpf.DBPFUnpacker;
+import sporemodder.file.dbpf.DBPFUnpackingPipeline;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -23,9 +34,69 @@ public class Main {
     public static void main(String[] args) throws Exception {
 
         boolean debug = false;
+        boolean incremental = false;
+        boolean memoryMapped = true;
+        // 'list' prints the items of a package instead of unpacking it
+        boolean listMode = args.length > 0 && args[0].equals("list");
+        // 'batch' unpacks many packages, each one into its own folder
+        boolean batchMode = args.length > 0 && args[0].equals("batch");
+        boolean json = false;
+        DBPFItemSelector selector = new DBPFItemSelector();
+        boolean hasFilters = false;
+        long minSize = 0;
+        long maxSize = Long.MAX_VALUE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long maxInflightBytes = DBPFUnpackingPipeline.DEFAULT_MAX_INFLIGHT_BYTES;
+        int concurrentJobs = Runtime.getRuntime().availableProcessors();
+        List<String> positionalArgs = new ArrayList<>();
 
-        if (args.length > 0 && (args[0].equals("-d") || args[0].equals("--debug"))) {
-            debug = true;
+        for (int i = listMode || batchMode ? 1 : 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-d") || arg.equals("--debug")) {
+                debug = true;
+            } else if (listMode && arg.equals("--json")) {
+                json = true;
+            } else if (!listMode && arg.equals("--incremental")) {
+                incremental = true;
+            } else if (!listMode && arg.equals("--no-mmap")) {
+                memoryMapped = false;
+            } else if (!listMode && arg.equals("--group")) {
+                selector.addGroup(getValue(args, ++i, arg));
+                hasFilters = true;
+            } else if (!listMode && arg.equals("--type")) {
+                selector.addType(getValue(args, ++i, arg));
+                hasFilters = true;
+            } else if (!listMode && arg.equals("--instance")) {
+                selector.setInstancePattern(getValue(args, ++i, arg));
+                hasFilters = true;
+            } else if (!listMode && arg.equals("--keys")) {
+                File keysFile = new File(getValue(args, ++i, arg));
+                try {
+                    selector.readKeys(keysFile);
+                } catch (IOException e) {
+                    exitWithUsage("could not read key list: " + e.getMessage());
+                }
+                hasFilters = true;
+            } else if (!listMode && arg.equals("--min-size")) {
+                minSize = parseSize(args, ++i, arg);
+                hasFilters = true;
+            } else if (!listMode && arg.equals("--max-size")) {
+                maxSize = parseSize(args, ++i, arg);
+                hasFilters = true;
+            } else if (arg.equals("--threads")) {
+                threads = parsePositiveInt(args, ++i, arg);
+            } else if (batchMode && arg.equals("--jobs")) {
+                concurrentJobs = parsePositiveInt(args, ++i, arg);
+            } else if (arg.equals("--max-inflight-mb")) {
+                maxInflightBytes = parsePositiveInt(args, ++i, arg) * 1024L * 1024L;
+            } else if (arg.startsWith("-") && arg.length() > 1) {
+                exitWithUsage("unknown option: " + arg);
+            } else {
+                positionalArgs.add(arg);
+            }
+        }
+
+        if (debug) {
             System.out.println("Debug mode enabled");
             configureLogger(Level.FINE);
         } else {
@@ -33,30 +104,122 @@ public class Main {
         }
 
         LoggerManager.initialize(debug);
-        int fileArgIndex = debug ? 1 : 0;
-
-        if (args.length != (fileArgIndex + 2)) {
-            System.err.println("DBPF Unpacker"); // + version
-            if (args.length == 0 || (debug && args.length == 1)) {
-                System.err.println("  error: no input file provided");
-            } else if (args.length == (fileArgIndex + 1)) {
-                System.err.println("  error: not enough arguments");
-            } else {
-                System.err.println("  error: too many arguments");
+
+        if (listMode) {
+            if (positionalArgs.size() != 1) {
+                exitWithUsage(positionalArgs.isEmpty() ? "no input file provided" : "too many arguments");
             }
-            System.err.println("  usage: dbpf_unpacker [-d|--debug] <file> <destination>");
-            System.exit(1);
+            File inputFile = new File(positionalArgs.get(0));
+            if (!inputFile.exists()) {
+                System.err.println("dbpf_unpacker v" + version);
+                System.err.println("  error: input file does not exist: " + inputFile.getAbsolutePath());
+                System.exit(1);
+            }
+
+            DBPFLister lister = new DBPFLister(inputFile);
+            lister.setFormat(json ? DBPFLister.Format.JSON : DBPFLister.Format.TEXT);
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+                lister.list(out);
+                out.flush();
+            } catch (Exception e) {
+                logger.severe("An error occurred while listing: " + e.getMessage());
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
         }
 
-        File inputFile = new File(args[fileArgIndex]);
-        File outputFile = new File(args[fileArgIndex + 1]);
+        List<Converter> converters = List.of(new DBPFConverter());
 
-        if (!inputFile.exists()) {
-            System.err.println("dbpf_unpacker v" + version);
-            System.err.println("  error: input file does not exist: " + inputFile.getAbsolutePath());
-            System.exit(1);
+        if (batchMode) {
+            if (positionalArgs.isEmpty()) {
+                exitWithUsage("no input provided");
+            }
+            if (positionalArgs.size() > 2) {
+                exitWithUsage("too many arguments");
+            }
+
+            DBPFBatchUnpacker batch = new DBPFBatchUnpacker(converters);
+            batch.setThreads(threads);
+            batch.setConcurrentJobs(concurrentJobs);
+            batch.setMaxInflightBytes(maxInflightBytes);
+            batch.setIncremental(incremental);
+            batch.setMemoryMapped(memoryMapped);
+            if (hasFilters) {
+                selector.setSizeRange(minSize, maxSize);
+                batch.setItemFilterFactory(() -> new DBPFItemSelector(selector));
+            }
+
+            // The input is a folder of packages, a job file, or a glob pattern
+            String input = positionalArgs.get(0);
+            File inputFile = new File(input);
+            try {
+                if (inputFile.isFile()) {
+                    if (positionalArgs.size() != 1) {
+                        exitWithUsage("a job file already has the destination of every package");
+                    }
+                    batch.readJobs(inputFile);
+                } else {
+                    if (positionalArgs.size() != 2) {
+                        exitWithUsage("no destination provided");
+                    }
+                    File outputFolder = new File(positionalArgs.get(1));
+                    if (inputFile.isDirectory()) {
+                        batch.addFolder(inputFile, outputFolder);
+                    } else if (input.contains("*") || input.contains("?") || input.contains("[") || input.contains("{")) {
+                        batch.addGlob(input, outputFolder);
+                    } else {
+                        System.err.println("dbpf_unpacker v" + version);
+                        System.err.println("  error: input does not exist: " + inputFile.getAbsolutePath());
+                        System.exit(1);
+                    }
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("dbpf_unpacker v" + version);
+                System.err.println("  error: " + e.getMessage());
+                System.exit(1);
+            }
+
+            if (batch.getJobs().isEmpty()) {
+                System.err.println("dbpf_unpacker v" + version);
+                System.err.println("  error: no packages found");
+                System.exit(1);
+            }
+
+            Map<File, Exception> failures = batch.call();
+            if (!failures.isEmpty()) {
+                System.err.println("dbpf_unpacker v" + version);
+                System.err.println("  error: " + failures.size() + " of " + batch.getJobs().size() + " packages could not be unpacked");
+                for (Map.Entry<File, Exception> failure : failures.entrySet()) {
+                    System.err.println("    " + failure.getKey().getPath() + ": " + failure.getValue().getMessage());
+                }
+                System.exit(1);
+            }
+            return;
         }
 
+        if (positionalArgs.size() < 2) {
+            if (positionalArgs.isEmpty()) {
+                exitWithUsage("no input file provided");
+            } else {
+                exitWithUsage("not enough arguments");
+            }
+        }
+
+        // The last argument is the destination, the rest are the packages in order of priority
+        List<File> inputFiles = new ArrayList<>();
+        for (String path : positionalArgs.subList(0, positionalArgs.size() - 1)) {
+            File inputFile = new File(path);
+            if (!inputFile.exists()) {
+                System.err.println("dbpf_unpacker v" + version);
+                System.err.println("  error: input file does not exist: " + inputFile.getAbsolutePath());
+                System.exit(1);
+            }
+            inputFiles.add(inputFile);
+        }
+        File outputFile = new File(positionalArgs.get(positionalArgs.size() - 1));
+
         if (!outputFile.exists()) {
             if (!outputFile.mkdirs()) {
                 System.err.println("dbpf_unpacker v" + version);
@@ -66,22 +229,35 @@ public class Main {
         }
 
         if (debug) {
-            logger.fine("Input file: " + inputFile.getAbsolutePath());
+            for (File inputFile : inputFiles) {
+                logger.fine("Input file: " + inputFile.getAbsolutePath());
+            }
             logger.fine("Output directory: " + outputFile.getAbsolutePath());
         }
 
         logger.fine("Starting unpacking process...");
         logger.fine("Fine level log message for testing");
-        logger.fine("Input file: " + inputFile.getAbsolutePath());
         logger.fine("Output directory: " + outputFile.getAbsolutePath());
 
-        List<Converter> converters = List.of(new DBPFConverter());
         try {
             logger.fine("Creating DBPFUnpacker...");
-            var unpacker = new DBPFUnpacker(inputFile, outputFile, converters);
+            var unpacker = new DBPFUnpacker(inputFiles, outputFile, converters);
+            unpacker.setThreads(threads);
+            unpacker.setMaxInflightBytes(maxInflightBytes);
+            unpacker.setIncremental(incremental);
+            unpacker.setMemoryMapped(memoryMapped);
+            if (hasFilters) {
+                selector.setSizeRange(minSize, maxSize);
+                unpacker.setItemFilter(selector);
+            }
 
             logger.fine("Starting unpacking process...");
-            unpacker.call();
+            Exception result = unpacker.call();
+            if (result != null) {
+                System.err.println("dbpf_unpacker v" + version);
+                System.err.println("  error: " + result.getMessage());
+                System.exit(1);
+            }
             logger.fine("Unpacking completed successfully.");
         } catch (Exception e) {
             logger.severe("An error occurred during unpacking: " + e.getMessage());
@@ -92,6 +268,54 @@ public class Main {
         logger.fine("Unpacking process finished.");
     }
 
+    private static void exitWithUsage(String error) {
+        System.err.println("DBPF Unpacker"); // + version
+        System.err.println("  error: " + error);
+        System.err.println("  usage: dbpf_unpacker [-d|--debug] [--incremental] [--no-mmap] [--threads N] [--max-inflight-mb N] [filters] <file>... <destination>");
+        System.err.println("         filters: [--group NAME]... [--type NAME]... [--instance PATTERN] [--keys FILE] [--min-size BYTES] [--max-size BYTES]");
+        System.err.println("         dbpf_unpacker batch [options] [--jobs N] <folder|pattern> <destination>");
+        System.err.println("         dbpf_unpacker batch [options] [--jobs N] <job file>");
+        System.err.println("         dbpf_unpacker list [-d|--debug] [--json] <file>");
+        System.exit(1);
+    }
+
+    private static String getValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            exitWithUsage("missing value for " + option);
+        }
+        return args[index];
+    }
+
+    private static long parseSize(String[] args, int index, String option) {
+        String value = getValue(args, index, option);
+        try {
+            long size = Long.parseLong(value);
+            if (size >= 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        exitWithUsage("invalid value for " + option + ": " + value);
+        return -1;
+    }
+
+    private static int parsePositiveInt(String[] args, int index, String option) {
+        if (index >= args.length) {
+            exitWithUsage("missing value for " + option);
+        }
+        try {
+            int value = Integer.parseInt(args[index]);
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Handled below
+        }
+        exitWithUsage("invalid value for " + option + ": " + args[index]);
+        return -1;
+    }
+
     private static void configureLogger(Level level) {
         Logger rootLogger = Logger.getLogger("");
         rootLogger.setLevel(level);
@@ -0,0 +1,309 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The entries of a package index, stored as parallel arrays instead of one {@link DBPFItem} per entry. An entry takes
+ * about 32 bytes, and there are no objects per entry, so the indexes of many big packages can be kept in memory at once.
+ * <p>
+ * Entries are accessed by their position in the index, or with a {@link Cursor}, which is a single object that moves
+ * through the entries. A {@link DBPFItem} is only created when it is requested with {@link #getItem(int)}.
+ */
+public class CompactIndex {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int size;
+	private int[] typeIDs;
+	private int[] groupIDs;
+	private int[] instanceIDs;
+	private long[] chunkOffsets;
+	private int[] compressedSizes;
+	private int[] memSizes;
+	/** One bit per entry: whether its data is compressed. */
+	private long[] compressedFlags;
+	/** One bit per entry: the value of {@link DBPFItem#isSaved}. */
+	private long[] savedFlags;
+	/** Finds entries by their key; it is built on the first lookup. */
+	private DBPFKeyTable keyTable;
+	/** The amount of entries when the key table was built. */
+	private int keyTableSize;
+
+	public CompactIndex() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty index with space for the given amount of entries; it grows if more are added.
+	 */
+	public CompactIndex(int capacity) {
+		capacity = Math.max(1, capacity);
+		typeIDs = new int[capacity];
+		groupIDs = new int[capacity];
+		instanceIDs = new int[capacity];
+		chunkOffsets = new long[capacity];
+		compressedSizes = new int[capacity];
+		memSizes = new int[capacity];
+		compressedFlags = new long[(capacity + 63) >>> 6];
+		savedFlags = new long[(capacity + 63) >>> 6];
+	}
+
+	/** Returns the number of entries in this index. */
+	public int size() {
+		return size;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > typeIDs.length) {
+			int newCapacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(capacity, typeIDs.length * 3L / 2));
+			typeIDs = Arrays.copyOf(typeIDs, newCapacity);
+			groupIDs = Arrays.copyOf(groupIDs, newCapacity);
+			instanceIDs = Arrays.copyOf(instanceIDs, newCapacity);
+			chunkOffsets = Arrays.copyOf(chunkOffsets, newCapacity);
+			compressedSizes = Arrays.copyOf(compressedSizes, newCapacity);
+			memSizes = Arrays.copyOf(memSizes, newCapacity);
+			compressedFlags = Arrays.copyOf(compressedFlags, (newCapacity + 63) >>> 6);
+			savedFlags = Arrays.copyOf(savedFlags, (newCapacity + 63) >>> 6);
+		}
+	}
+
+	private static boolean getFlag(long[] flags, int index) {
+		return (flags[index >>> 6] & (1L << index)) != 0;
+	}
+
+	private static void setFlag(long[] flags, int index, boolean value) {
+		if (value) {
+			flags[index >>> 6] |= 1L << index;
+		} else {
+			flags[index >>> 6] &= ~(1L << index);
+		}
+	}
+
+	/** Adds an entry with the values of the given item. */
+	public void add(DBPFItem item) {
+		ensureCapacity(size + 1);
+		int i = size++;
+		typeIDs[i] = item.name.getTypeID();
+		groupIDs[i] = item.name.getGroupID();
+		instanceIDs[i] = item.name.getInstanceID();
+		chunkOffsets[i] = item.chunkOffset;
+		compressedSizes[i] = item.compressedSize;
+		memSizes[i] = item.memSize;
+		setFlag(compressedFlags, i, item.isCompressed);
+		setFlag(savedFlags, i, item.isSaved);
+	}
+
+	/**
+	 * Decodes index entries from a little-endian buffer, in the same format as {@link DBPFItem#read(ByteBuffer, boolean, boolean, boolean)}.
+	 * @param buffer The buffer that contains the entries.
+	 * @param count How many entries are decoded.
+	 * @param isDBBF Whether the package uses 64-bit offsets.
+	 * @param typeID The type ID shared by all entries, or -1 if every entry stores its own.
+	 * @param groupID The group ID shared by all entries, or -1 if every entry stores its own.
+	 */
+	void read(ByteBuffer buffer, int count, boolean isDBBF, int typeID, int groupID) throws IOException {
+		ensureCapacity(size + count);
+		for (int j = 0; j < count; j++) {
+			int i = size;
+			typeIDs[i] = typeID == -1 ? buffer.getInt() : typeID;
+			groupIDs[i] = groupID == -1 ? buffer.getInt() : groupID;
+			instanceIDs[i] = buffer.getInt();
+			chunkOffsets[i] = isDBBF ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
+			compressedSizes[i] = buffer.getInt() & 0x7FFFFFFF;
+			memSizes[i] = buffer.getInt();
+
+			switch (buffer.getShort()) {
+				case 0: setFlag(compressedFlags, i, false);
+						break;
+				case -1: setFlag(compressedFlags, i, true);
+						break;
+				default: throw new IOException("Unknown compression label on index entry position " + (buffer.position() - 2));
+			}
+
+			setFlag(savedFlags, i, buffer.get() != 0);
+			// Padding
+			buffer.get();
+			size++;
+		}
+	}
+
+	public int getTypeID(int index) {
+		return typeIDs[checkIndex(index)];
+	}
+
+	public int getGroupID(int index) {
+		return groupIDs[checkIndex(index)];
+	}
+
+	public int getInstanceID(int index) {
+		return instanceIDs[checkIndex(index)];
+	}
+
+	public long getChunkOffset(int index) {
+		return chunkOffsets[checkIndex(index)];
+	}
+
+	public int getCompressedSize(int index) {
+		return compressedSizes[checkIndex(index)];
+	}
+
+	public int getMemSize(int index) {
+		return memSizes[checkIndex(index)];
+	}
+
+	public boolean isCompressed(int index) {
+		return getFlag(compressedFlags, checkIndex(index));
+	}
+
+	public boolean isSaved(int index) {
+		return getFlag(savedFlags, checkIndex(index));
+	}
+
+	private int checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + size + " entries");
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the position of the first entry with the given key, or -1 if there is none. The first lookup builds a hash table
+	 * of the keys, so later lookups take constant time.
+	 */
+	public int indexOf(int groupID, int instanceID, int typeID) {
+		if (keyTable == null || keyTableSize != size) {
+			keyTable = new DBPFKeyTable(size);
+			for (int i = 0; i < size; i++) {
+				keyTable.putIfAbsent(groupIDs[i], instanceIDs[i], typeIDs[i], i);
+			}
+			keyTableSize = size;
+		}
+		return keyTable.get(groupID, instanceID, typeID);
+	}
+
+	/**
+	 * Copies the values of the given entry into an existing item. This can be used to reuse a single item while iterating.
+	 */
+	public void copyTo(int index, DBPFItem item) {
+		checkIndex(index);
+		item.name.setTypeID(typeIDs[index]);
+		item.name.setGroupID(groupIDs[index]);
+		item.name.setInstanceID(instanceIDs[index]);
+		item.chunkOffset = chunkOffsets[index];
+		item.compressedSize = compressedSizes[index];
+		item.memSize = memSizes[index];
+		item.isCompressed = getFlag(compressedFlags, index);
+		item.isSaved = getFlag(savedFlags, index);
+	}
+
+	/** Creates a new item with the values of the given entry. */
+	public DBPFItem getItem(int index) {
+		DBPFItem item = new DBPFItem();
+		copyTo(index, item);
+		return item;
+	}
+
+	/** Returns a cursor positioned before the first entry. */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * A view of one entry of the index at a time. The same object is moved through the entries with {@link #next()}
+	 * or {@link #moveTo(int)}, so iterating the index does not create any object.
+	 */
+	public class Cursor {
+		private int index = -1;
+
+		/** Moves to the next entry, and returns false if there are no more entries. */
+		public boolean next() {
+			if (index < size) {
+				index++;
+			}
+			return index < size;
+		}
+
+		/** Moves to the previous entry, and returns false if this was the first entry. */
+		public boolean previous() {
+			if (index >= 0) {
+				index--;
+			}
+			return index >= 0;
+		}
+
+		/** Moves to the given entry. To iterate from the end, use {@link #moveTo(int)} with {@link CompactIndex#size()}, then {@link #previous()}. */
+		public void moveTo(int index) {
+			if (index < -1 || index > size) {
+				throw new IndexOutOfBoundsException("Index " + index + " out of bounds for " + size + " entries");
+			}
+			this.index = index;
+		}
+
+		/** Returns the position of the current entry in the index. */
+		public int index() {
+			return index;
+		}
+
+		public int getTypeID() {
+			return typeIDs[checkIndex(index)];
+		}
+
+		public int getGroupID() {
+			return groupIDs[checkIndex(index)];
+		}
+
+		public int getInstanceID() {
+			return instanceIDs[checkIndex(index)];
+		}
+
+		public long getChunkOffset() {
+			return chunkOffsets[checkIndex(index)];
+		}
+
+		public int getCompressedSize() {
+			return compressedSizes[checkIndex(index)];
+		}
+
+		public int getMemSize() {
+			return memSizes[checkIndex(index)];
+		}
+
+		public boolean isCompressed() {
+			return getFlag(compressedFlags, checkIndex(index));
+		}
+
+		public boolean isSaved() {
+			return getFlag(savedFlags, checkIndex(index));
+		}
+
+		/** Copies the values of the current entry into an existing item. */
+		public void copyTo(DBPFItem item) {
+			CompactIndex.this.copyTo(index, item);
+		}
+
+		/** Creates a new item with the values of the current entry. */
+		public DBPFItem toItem() {
+			return getItem(index);
+		}
+	}
+}
@@ -0,0 +1,305 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import sporemodder.LoggerManager;
+import sporemodder.file.Converter;
+
+/**
+ * Unpacks many packages, each one into its own folder, in a single run. The registries are read once and shared by all
+ * the packages, and several packages are unpacked at the same time, so unpacking thousands of small mod packages does not
+ * pay the start-up cost of the unpacker for each one.
+ * <p>
+ * The packages can be given one by one, as every package in a folder, as a glob pattern or as a job file.
+ */
+public class DBPFBatchUnpacker {
+	private static final Logger logger = LoggerManager.getLogger(DBPFBatchUnpacker.class);
+
+	private static final String PACKAGE_EXTENSION = ".package";
+
+	/** A package and the folder where it is unpacked. */
+	public static class Job {
+		public final File inputFile;
+		public final File outputFolder;
+
+		public Job(File inputFile, File outputFolder) {
+			this.inputFile = inputFile;
+			this.outputFolder = outputFolder;
+		}
+	}
+
+	private final List<Job> jobs = new ArrayList<Job>();
+	private final Set<File> outputFolders = new HashSet<File>();
+	private final List<Converter> converters;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int concurrentJobs = Runtime.getRuntime().availableProcessors();
+	private long maxInflightBytes = DBPFUnpackingPipeline.DEFAULT_MAX_INFLIGHT_BYTES;
+	private boolean incremental;
+	private boolean memoryMapped = true;
+	private Supplier<DBPFUnpacker.DBPFItemFilter> itemFilterFactory;
+
+	public DBPFBatchUnpacker(List<Converter> converters) {
+		this.converters = converters;
+	}
+
+	public List<Job> getJobs() {
+		return jobs;
+	}
+
+	/**
+	 * Adds a package that will be unpacked into the given folder.
+	 * @throws IllegalArgumentException If another package is already unpacked into the same folder.
+	 */
+	public void addJob(File inputFile, File outputFolder) {
+		if (!outputFolders.add(outputFolder.getAbsoluteFile())) {
+			throw new IllegalArgumentException("Two packages cannot be unpacked into the same folder: " + outputFolder.getPath());
+		}
+		jobs.add(new Job(inputFile, outputFolder));
+	}
+
+	/**
+	 * Adds every <code>.package</code> file of a folder, not including its subfolders. Each package is unpacked into a folder
+	 * with the name of the package, without the extension, inside the output folder.
+	 */
+	public void addFolder(File folder, File outputFolder) throws IOException {
+		try (Stream<Path> paths = Files.list(folder.toPath())) {
+			for (Path path : paths.filter(path -> isPackage(path)).sorted().collect(Collectors.toList())) {
+				addJob(path.toFile(), new File(outputFolder, getBaseName(path.getFileName().toString())));
+			}
+		}
+	}
+
+	/**
+	 * Adds the files that match a glob pattern, such as <code>mods/*.package</code> or <code>Data/**&#47;*.package</code>.
+	 * Each package is unpacked into a folder inside the output folder, with the path of the package relative to the first part
+	 * of the pattern that has no wildcards, without the extension.
+	 */
+	public void addGlob(String pattern, File outputFolder) throws IOException {
+		String normalized = File.separatorChar == '\\' ? pattern.replace('\\', '/') : pattern;
+
+		// The folder where the search starts is the part of the pattern before the first wildcard
+		int wildcard = indexOfWildcard(normalized);
+		int baseEnd = normalized.lastIndexOf('/', wildcard == -1 ? normalized.length() : wildcard);
+		Path base = baseEnd == -1 ? new File(".").toPath() : new File(baseEnd == 0 ? "/" : normalized.substring(0, baseEnd)).toPath();
+		String relativePattern = normalized.substring(baseEnd + 1);
+
+		if (!Files.isDirectory(base)) {
+			throw new IOException("Folder does not exist: " + base);
+		}
+
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + relativePattern);
+		// Unless the pattern can cross folders, there is no need to look deeper than the pattern itself
+		int maxDepth = relativePattern.contains("**") ? Integer.MAX_VALUE : relativePattern.split("/").length;
+
+		try (Stream<Path> paths = Files.walk(base, maxDepth)) {
+			for (Path path : paths.filter(path -> Files.isRegularFile(path) && matcher.matches(base.relativize(path)))
+					.sorted().collect(Collectors.toList())) {
+				String relativePath = getBaseName(base.relativize(path).toString());
+				addJob(path.toFile(), new File(outputFolder, relativePath));
+			}
+		}
+	}
+
+	/**
+	 * Reads the jobs from a text file. Every line has the path of a package and the folder where it is unpacked, separated by a tab.
+	 * Relative paths are relative to the folder of the job file. Empty lines and lines that start with <code>#</code> are ignored.
+	 */
+	public void readJobs(File jobFile) throws IOException {
+		File folder = jobFile.getAbsoluteFile().getParentFile();
+		try (BufferedReader reader = Files.newBufferedReader(jobFile.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.trim().isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] values = line.split("\t");
+				if (values.length != 2 || values[0].trim().isEmpty() || values[1].trim().isEmpty()) {
+					throw new IOException("Malformed job on line " + lineNumber + " of " + jobFile.getName() + ": " + line);
+				}
+				try {
+					addJob(resolve(folder, values[0].trim()), resolve(folder, values[1].trim()));
+				}
+				catch (IllegalArgumentException e) {
+					throw new IOException(e.getMessage() + " (line " + lineNumber + " of " + jobFile.getName() + ")");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets how many threads decompress and write items in total. They are divided between the packages that are unpacked at the same time.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets how many packages are unpacked at the same time.
+	 */
+	public void setConcurrentJobs(int concurrentJobs) {
+		this.concurrentJobs = concurrentJobs;
+	}
+
+	/**
+	 * Sets the maximum amount of item data that can be held in memory at once. It is divided between the packages that are unpacked at the same time.
+	 */
+	public void setMaxInflightBytes(long maxInflightBytes) {
+		this.maxInflightBytes = maxInflightBytes;
+	}
+
+	/** See {@link DBPFUnpacker#setIncremental(boolean)}; each output folder has its own manifest. */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/** See {@link DBPFUnpacker#setMemoryMapped(boolean)}. */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Sets what creates the item filter of each package. Filters keep the names of the package they are filtering, so
+	 * every package is given a new one; setting it to null unpacks every item.
+	 */
+	public void setItemFilterFactory(Supplier<DBPFUnpacker.DBPFItemFilter> itemFilterFactory) {
+		this.itemFilterFactory = itemFilterFactory;
+	}
+
+	/**
+	 * Unpacks all the packages. A package that fails does not stop the rest.
+	 * @return The error of every package that failed, in the order of the jobs; it is empty if all of them were unpacked.
+	 */
+	public Map<File, Exception> call() throws InterruptedException {
+		long initialTime = System.currentTimeMillis();
+		Map<File, Exception> failures = new LinkedHashMap<File, Exception>();
+		if (jobs.isEmpty()) {
+			return failures;
+		}
+
+		int jobThreads = Math.min(concurrentJobs, jobs.size());
+		int threadsPerJob = Math.max(1, threads / jobThreads);
+		long inflightBytesPerJob = Math.max(1, maxInflightBytes / jobThreads);
+		logger.fine("Unpacking " + jobs.size() + " packages, " + jobThreads + " at a time with " + threadsPerJob + " threads each");
+
+		ExecutorService executor = Executors.newFixedThreadPool(jobThreads, runnable -> {
+			Thread thread = new Thread(runnable, "dbpf-batch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<Exception>> results = new ArrayList<Future<Exception>>();
+			for (Job job : jobs) {
+				results.add(executor.submit(() -> unpack(job, threadsPerJob, inflightBytesPerJob)));
+			}
+
+			for (int i = 0; i < jobs.size(); i++) {
+				Job job = jobs.get(i);
+				Exception exception;
+				try {
+					exception = results.get(i).get();
+				}
+				catch (ExecutionException e) {
+					exception = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				}
+				if (exception != null) {
+					logger.warning("Error unpacking file: " + job.inputFile.getAbsolutePath() + ". Error: " + exception.getMessage());
+					failures.put(job.inputFile, exception);
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		long endTime = System.currentTimeMillis();
+		logger.fine("Batch of " + jobs.size() + " packages completed in " + (endTime - initialTime) + "ms, " + failures.size() + " failed");
+		return failures;
+	}
+
+	private Exception unpack(Job job, int threads, long maxInflightBytes) throws Exception {
+		logger.fine("Unpacking " + job.inputFile.getAbsolutePath() + " into " + job.outputFolder.getAbsolutePath());
+		if (!job.inputFile.isFile()) {
+			return new IOException("Input file does not exist: " + job.inputFile.getAbsolutePath());
+		}
+		if (!job.outputFolder.isDirectory() && !job.outputFolder.mkdirs()) {
+			return new IOException("Could not create output folder: " + job.outputFolder.getAbsolutePath());
+		}
+
+		DBPFUnpacker unpacker = new DBPFUnpacker(job.inputFile, job.outputFolder, converters);
+		unpacker.setThreads(threads);
+		unpacker.setMaxInflightBytes(maxInflightBytes);
+		unpacker.setIncremental(incremental);
+		unpacker.setMemoryMapped(memoryMapped);
+		if (itemFilterFactory != null) {
+			unpacker.setItemFilter(itemFilterFactory.get());
+		}
+		return unpacker.call();
+	}
+
+	private static boolean isPackage(Path path) {
+		return Files.isRegularFile(path) && path.getFileName().toString().toLowerCase().endsWith(PACKAGE_EXTENSION);
+	}
+
+	private static String getBaseName(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		int separator = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf(File.separatorChar));
+		return dot > separator + 1 ? fileName.substring(0, dot) : fileName;
+	}
+
+	/** Returns the position of the first wildcard of a glob pattern, or -1 if it has none. */
+	static int indexOfWildcard(String pattern) {
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '*' || c == '?' || c == '[' || c == '{') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static File resolve(File folder, String path) {
+		File file = new File(path);
+		return file.isAbsolute() ? file : new File(folder, path);
+	}
+}
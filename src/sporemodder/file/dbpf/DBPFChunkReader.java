@@ -0,0 +1,163 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import sporemodder.file.filestructures.StreamReader;
+
+/**
+ * Reads the raw data of a list of items, merging the chunks of items that are next to each other in the package into a
+ * single read. Packages usually store their items back to back, so a package with many small items is read with a few big
+ * reads instead of a seek and a read per item.
+ * <p>
+ * The items must be sorted by their offset in the package, and read in that order; items can be skipped. Windows only
+ * span items of the list: a gap bigger than {@link #MAX_GAP} bytes, such as the data of an item that is not read, ends the window.
+ * This is meant for streams that read from a file; memory-mapped packages do not need it.
+ */
+public class DBPFChunkReader {
+
+	/** The default maximum size of a single read. */
+	public static final int DEFAULT_WINDOW_SIZE = 8 * 1024 * 1024;
+	/** Chunks separated by at most this many bytes are read together; the bytes in between are read and discarded. */
+	public static final int MAX_GAP = 64 * 1024;
+
+	private final StreamReader in;
+	private final List<DBPFItem> items;
+	private final int windowSize;
+
+	/** The position in the list of the next item that can start a window. */
+	private int nextItem;
+	/** Items before this position in the list are read on their own, because the window that had them could not be read. */
+	private int singleReadsEnd;
+
+	private byte[] window;
+	private long windowStart;
+	private int windowLength;
+
+	private int readCount;
+
+	/**
+	 * @param in The package stream.
+	 * @param items The items that will be read, sorted by offset.
+	 */
+	public DBPFChunkReader(StreamReader in, List<DBPFItem> items) {
+		this(in, items, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * @param in The package stream.
+	 * @param items The items that will be read, sorted by offset.
+	 * @param windowSize The maximum size of a single read; items bigger than this are read on their own.
+	 */
+	public DBPFChunkReader(StreamReader in, List<DBPFItem> items, int windowSize) {
+		this.in = in;
+		this.items = items;
+		this.windowSize = windowSize;
+	}
+
+	/** Returns how many reads have been done on the package stream. */
+	public int getReadCount() {
+		return readCount;
+	}
+
+	private static int getRawSize(DBPFItem item) {
+		return item.isCompressed ? item.compressedSize : item.memSize;
+	}
+
+	/**
+	 * Returns the raw data of the given item, like {@link DBPFItem#readRawBuffer(StreamReader)}. The data is copied into an array
+	 * of its own, so it does not keep the window in memory.
+	 * @param item The item, which must be in the list and not be before any item that has already been read.
+	 * @throws IOException If the data of the item could not be read, or the item is not in the list after the last one read.
+	 * Other items can still be read after this.
+	 */
+	public ByteBuffer read(DBPFItem item) throws IOException {
+		int size = getRawSize(item);
+		long offset = item.chunkOffset;
+
+		if (window == null || offset < windowStart || offset + size > windowStart + windowLength) {
+			if (!fillWindow(item)) {
+				// Too big for a window, it is read on its own
+				readCount++;
+				return item.readRawBuffer(in);
+			}
+		}
+
+		byte[] data = new byte[size];
+		System.arraycopy(window, (int) (offset - windowStart), data, 0, size);
+		return ByteBuffer.wrap(data);
+	}
+
+	/**
+	 * Reads a window that starts with the given item and includes as many of the following items as possible.
+	 * Returns false if the item must be read on its own: it does not fit in a window, or the window could not be read.
+	 */
+	private boolean fillWindow(DBPFItem first) throws IOException {
+		int index = nextItem;
+		while (index < items.size() && items.get(index) != first) {
+			index++;
+		}
+		if (index == items.size()) {
+			throw new IOException("Items must be read in the order of the list");
+		}
+
+		long start = first.chunkOffset;
+		long end = start + getRawSize(first);
+		if (end - start > windowSize || index < singleReadsEnd) {
+			nextItem = index + 1;
+			return false;
+		}
+
+		int i = index + 1;
+		while (i < items.size()) {
+			DBPFItem item = items.get(i);
+			long itemEnd = item.chunkOffset + getRawSize(item);
+			if (item.chunkOffset - end > MAX_GAP || itemEnd - start > windowSize) {
+				break;
+			}
+			end = Math.max(end, itemEnd);
+			i++;
+		}
+
+		int length = (int) (end - start);
+		if (window == null || window.length < length) {
+			window = new byte[Math.max(length, Math.min(windowSize, 1024 * 1024))];
+		}
+		readCount++;
+		try {
+			in.seek(start);
+			in.read(window, 0, length);
+		}
+		catch (IOException e) {
+			// One damaged item, such as one that goes past the end of the file, must not make its neighbours fail,
+			// so every item of the window is read on its own; only the damaged ones fail then
+			windowLength = 0;
+			nextItem = index + 1;
+			singleReadsEnd = i;
+			return false;
+		}
+		nextItem = i;
+		windowStart = start;
+		windowLength = length;
+		return true;
+	}
+}
@@ -0,0 +1,606 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.ClosedFileSystemException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import sporemodder.HashManager;
+import sporemodder.file.filestructures.MappedFileStream;
+
+/**
+ * A read-only file system with the contents of a package, laid out like an unpacked package: every group is a folder in
+ * the root, and every item is a file named <code>instance.type</code> inside the folder of its group. The names are the
+ * ones the unpacker uses, taken from the registries and the names file of the package.
+ * <p>
+ * Only the index is read when the file system is opened. The data of an item is read, and decompressed, when its file is
+ * read; the package is memory-mapped, so files can be read from several threads at once. If the index has several items
+ * with the same name, the last one is used, like when the package is unpacked.
+ * <p>
+ * File systems are created with {@link DBPFFileSystemProvider}.
+ */
+public class DBPFFileSystem extends FileSystem {
+
+	/** A folder in the root, with the items of a group. Its files are named when it is first used. */
+	private class Directory {
+		private final String name;
+		private int[] items = new int[4];
+		private int itemCount;
+		private Map<String, Integer> files;
+
+		private Directory(String name) {
+			this.name = name;
+		}
+
+		private void add(int index) {
+			if (itemCount == items.length) {
+				items = Arrays.copyOf(items, itemCount * 2);
+			}
+			items[itemCount++] = index;
+		}
+
+		private synchronized Map<String, Integer> getFiles() {
+			if (files == null) {
+				files = new LinkedHashMap<String, Integer>();
+				for (int i = 0; i < itemCount; i++) {
+					int index = items[i];
+					String fileName = hasher.getFileName(entries.getInstanceID(index)) + "." + hasher.getTypeName(entries.getTypeID(index));
+					// Later items replace earlier ones with the same name
+					files.put(fileName, index);
+				}
+				items = null;
+			}
+			return files;
+		}
+	}
+
+	private final DBPFFileSystemProvider provider;
+	private final Path packagePath;
+	private final MappedFileStream stream;
+	private final CompactIndex entries;
+	private final HashManager hasher;
+	private final FileTime lastModifiedTime;
+	private final Map<String, Directory> directories = new LinkedHashMap<String, Directory>();
+	private final DBPFPath root;
+	private volatile boolean isOpen = true;
+
+	DBPFFileSystem(DBPFFileSystemProvider provider, Path packagePath, HashManager hasher) throws IOException {
+		this.provider = provider;
+		this.packagePath = packagePath;
+		this.hasher = hasher;
+		this.root = new DBPFPath(this, "/");
+		this.lastModifiedTime = Files.getLastModifiedTime(packagePath);
+
+		stream = new MappedFileStream(packagePath.toFile());
+		try {
+			DatabasePackedFile header = new DatabasePackedFile();
+			header.readHeader(stream);
+			header.readIndex(stream);
+			entries = header.index.readCompactItems(stream, header.indexCount, header.isDBBF);
+
+			DBPFUnpacker.findNamesFile(entries, stream, hasher);
+
+			Map<Integer, Directory> groups = new LinkedHashMap<Integer, Directory>();
+			for (int i = 0; i < entries.size(); i++) {
+				int groupID = entries.getGroupID(i);
+				Directory directory = groups.get(groupID);
+				if (directory == null) {
+					directory = new Directory(hasher.getFileName(groupID));
+					groups.put(groupID, directory);
+					directories.put(directory.name, directory);
+				}
+				directory.add(i);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			stream.close();
+			throw e;
+		}
+	}
+
+	/** Returns the package file that this file system reads. */
+	public Path getPackagePath() {
+		return packagePath;
+	}
+
+	/** Returns the number of items in the index of the package. */
+	public int getItemCount() {
+		return entries.size();
+	}
+
+	@Override
+	public FileSystemProvider provider() {
+		return provider;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (isOpen) {
+			isOpen = false;
+			provider.removeFileSystem(this);
+			stream.close();
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return isOpen;
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return true;
+	}
+
+	@Override
+	public String getSeparator() {
+		return "/";
+	}
+
+	@Override
+	public Iterable<Path> getRootDirectories() {
+		return Collections.<Path>singletonList(root);
+	}
+
+	@Override
+	public Iterable<FileStore> getFileStores() {
+		return Collections.<FileStore>singletonList(getFileStore());
+	}
+
+	@Override
+	public Set<String> supportedFileAttributeViews() {
+		return Collections.singleton("basic");
+	}
+
+	@Override
+	public DBPFPath getPath(String first, String... more) {
+		if (more.length == 0) {
+			return new DBPFPath(this, first);
+		}
+		StringBuilder sb = new StringBuilder(first);
+		for (String name : more) {
+			if (!name.isEmpty()) {
+				if (sb.length() > 0) {
+					sb.append('/');
+				}
+				sb.append(name);
+			}
+		}
+		return new DBPFPath(this, sb.toString());
+	}
+
+	@Override
+	public PathMatcher getPathMatcher(String syntaxAndPattern) {
+		int colon = syntaxAndPattern.indexOf(':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException("Pattern must be given as syntax:pattern");
+		}
+		String syntax = syntaxAndPattern.substring(0, colon);
+		String pattern = syntaxAndPattern.substring(colon + 1);
+
+		Pattern regex;
+		if (syntax.equalsIgnoreCase("glob")) {
+			regex = Pattern.compile(globToRegex(pattern));
+		} else if (syntax.equalsIgnoreCase("regex")) {
+			regex = Pattern.compile(pattern);
+		} else {
+			throw new UnsupportedOperationException("Unsupported pattern syntax: " + syntax);
+		}
+		return path -> regex.matcher(path.toString()).matches();
+	}
+
+	/** Converts a glob pattern into a regular expression, following the rules of {@link FileSystem#getPathMatcher(String)}. */
+	static String globToRegex(String glob) {
+		StringBuilder sb = new StringBuilder();
+		boolean inGroup = false;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			switch (c) {
+			case '*':
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					sb.append(".*");
+					i++;
+				} else {
+					sb.append("[^/]*");
+				}
+				break;
+			case '?':
+				sb.append("[^/]");
+				break;
+			case '{':
+				sb.append("(?:");
+				inGroup = true;
+				break;
+			case '}':
+				sb.append(inGroup ? ")" : "\\}");
+				inGroup = false;
+				break;
+			case ',':
+				sb.append(inGroup ? "|" : ",");
+				break;
+			case '[':
+				int end = glob.indexOf(']', i + 1);
+				if (end == -1) {
+					throw new IllegalArgumentException("Missing ']' in glob pattern: " + glob);
+				}
+				String set = glob.substring(i + 1, end);
+				sb.append('[');
+				if (set.startsWith("!")) {
+					sb.append('^');
+					set = set.substring(1);
+				}
+				sb.append(set.replace("\\", "\\\\").replace("[", "\\[").replace("&&", "&\\&"));
+				sb.append(']');
+				i = end;
+				break;
+			case '\\':
+				if (i + 1 < glob.length()) {
+					sb.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+				}
+				break;
+			default:
+				sb.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public UserPrincipalLookupService getUserPrincipalLookupService() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public WatchService newWatchService() {
+		throw new UnsupportedOperationException("Package files cannot be watched");
+	}
+
+	URI getUri(String path) {
+		URI packageUri = packagePath.toUri();
+		try {
+			// The URI constructor quotes the characters that need it, so the parts are given decoded
+			return new URI(DBPFFileSystemProvider.SCHEME, packageUri.getScheme() + ":" + packageUri.getSchemeSpecificPart() + "!" + path, null);
+		}
+		catch (URISyntaxException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	void ensureOpen() {
+		if (!isOpen) {
+			throw new ClosedFileSystemException();
+		}
+	}
+
+	/** The attributes of a file or folder of the file system. */
+	class Attributes implements BasicFileAttributes {
+		/** The position of the item in the index, or -1 for folders. */
+		final int index;
+		final Directory directory;
+
+		private Attributes(int index, Directory directory) {
+			this.index = index;
+			this.directory = directory;
+		}
+
+		@Override
+		public FileTime lastModifiedTime() {
+			return lastModifiedTime;
+		}
+
+		@Override
+		public FileTime lastAccessTime() {
+			return lastModifiedTime;
+		}
+
+		@Override
+		public FileTime creationTime() {
+			return lastModifiedTime;
+		}
+
+		@Override
+		public boolean isRegularFile() {
+			return index != -1;
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return index == -1;
+		}
+
+		@Override
+		public boolean isSymbolicLink() {
+			return false;
+		}
+
+		@Override
+		public boolean isOther() {
+			return false;
+		}
+
+		@Override
+		public long size() {
+			return index == -1 ? 0 : entries.getMemSize(index);
+		}
+
+		@Override
+		public Object fileKey() {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the attributes of the file or folder at the given path.
+	 * @throws NoSuchFileException If there is no such file or folder.
+	 */
+	Attributes getAttributes(DBPFPath path) throws NoSuchFileException {
+		ensureOpen();
+		List<String> names = path.toAbsolutePath().getNormalizedNames();
+		if (names.isEmpty()) {
+			return new Attributes(-1, null);
+		}
+		Directory directory = directories.get(names.get(0));
+		if (directory != null) {
+			if (names.size() == 1) {
+				return new Attributes(-1, directory);
+			}
+			if (names.size() == 2) {
+				Integer index = directory.getFiles().get(names.get(1));
+				if (index != null) {
+					return new Attributes(index, directory);
+				}
+			}
+		}
+		throw new NoSuchFileException(path.toString());
+	}
+
+	/** Returns the attributes of an existing file, or throws an exception if the path is a folder or does not exist. */
+	private Attributes getFileAttributes(DBPFPath path) throws IOException {
+		Attributes attributes = getAttributes(path);
+		if (attributes.isDirectory()) {
+			throw new IOException("Is a directory: " + path);
+		}
+		return attributes;
+	}
+
+	/** Returns a stream that decompresses the data of the item while it is read. */
+	InputStream newInputStream(DBPFPath path) throws IOException {
+		DBPFItem item = entries.getItem(getFileAttributes(path).index);
+		return item.openStream(stream);
+	}
+
+	/** Returns a channel with the data of the item; it is only read, and decompressed, when the channel is first read. */
+	SeekableByteChannel newByteChannel(DBPFPath path) throws IOException {
+		DBPFItem item = entries.getItem(getFileAttributes(path).index);
+		return new ItemChannel(item);
+	}
+
+	DirectoryStream<Path> newDirectoryStream(DBPFPath dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+		Attributes attributes = getAttributes(dir);
+		if (!attributes.isDirectory()) {
+			throw new NotDirectoryException(dir.toString());
+		}
+		Iterable<String> names = attributes.directory == null ? directories.keySet() : attributes.directory.getFiles().keySet();
+
+		List<Path> paths = new ArrayList<Path>();
+		for (String name : names) {
+			Path path = dir.resolve(name);
+			if (filter == null || filter.accept(path)) {
+				paths.add(path);
+			}
+		}
+
+		return new DirectoryStream<Path>() {
+			private boolean iterated;
+
+			@Override
+			public Iterator<Path> iterator() {
+				if (iterated) {
+					throw new IllegalStateException("The directory stream can only be iterated once");
+				}
+				iterated = true;
+				return paths.iterator();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private class ItemChannel implements SeekableByteChannel {
+		private final DBPFItem item;
+		private ByteBuffer data;
+		private long position;
+		private boolean isChannelOpen = true;
+
+		private ItemChannel(DBPFItem item) {
+			this.item = item;
+		}
+
+		private ByteBuffer getData() throws IOException {
+			if (data == null) {
+				ensureOpen();
+				ByteBuffer raw = item.readRawBuffer(stream);
+				if (item.isCompressed) {
+					byte[] out = new byte[item.memSize];
+					RefPackCompression.decompress(raw, ByteBuffer.wrap(out));
+					data = ByteBuffer.wrap(out);
+				} else {
+					data = raw;
+				}
+			}
+			return data;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return isChannelOpen;
+		}
+
+		@Override
+		public void close() {
+			isChannelOpen = false;
+			data = null;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!isChannelOpen) {
+				throw new ClosedChannelException();
+			}
+			if (position >= item.memSize) {
+				return -1;
+			}
+			ByteBuffer src = getData().duplicate();
+			src.position((int) position);
+			int count = Math.min(src.remaining(), dst.remaining());
+			src.limit(src.position() + count);
+			dst.put(src);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			throw new NonWritableChannelException();
+		}
+
+		@Override
+		public long position() throws IOException {
+			if (!isChannelOpen) {
+				throw new ClosedChannelException();
+			}
+			return position;
+		}
+
+		@Override
+		public SeekableByteChannel position(long newPosition) throws IOException {
+			if (!isChannelOpen) {
+				throw new ClosedChannelException();
+			}
+			if (newPosition < 0) {
+				throw new IllegalArgumentException("Negative position");
+			}
+			position = newPosition;
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			if (!isChannelOpen) {
+				throw new ClosedChannelException();
+			}
+			return item.memSize;
+		}
+
+		@Override
+		public SeekableByteChannel truncate(long size) {
+			throw new NonWritableChannelException();
+		}
+	}
+
+	private class DBPFFileStore extends FileStore {
+		@Override
+		public String name() {
+			return packagePath.toString();
+		}
+
+		@Override
+		public String type() {
+			return DBPFFileSystemProvider.SCHEME;
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public long getTotalSpace() throws IOException {
+			return stream.length();
+		}
+
+		@Override
+		public long getUsableSpace() {
+			return 0;
+		}
+
+		@Override
+		public long getUnallocatedSpace() {
+			return 0;
+		}
+
+		@Override
+		public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
+			return type == BasicFileAttributeView.class;
+		}
+
+		@Override
+		public boolean supportsFileAttributeView(String name) {
+			return name.equals("basic");
+		}
+
+		@Override
+		public <V extends FileStoreAttributeView> V getFileStoreAttributeView(Class<V> type) {
+			return null;
+		}
+
+		@Override
+		public Object getAttribute(String attribute) {
+			throw new UnsupportedOperationException("Unsupported attribute: " + attribute);
+		}
+	}
+
+	FileStore getFileStore() {
+		return new DBPFFileStore();
+	}
+}
@@ -0,0 +1,339 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.ReadOnlyFileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import sporemodder.HashManager;
+
+/**
+ * A file system provider that opens packages as read-only file systems, so that their files can be listed, read and copied
+ * with the <code>java.nio.file</code> API without unpacking them, see {@link DBPFFileSystem}.
+ * <p>
+ * The URIs have the form <code>dbpf:file:///path/to/file.package!/group/instance.type</code>. A file system can be opened with
+ * {@link java.nio.file.FileSystems#newFileSystem(URI, Map)}, and then {@link Paths#get(URI)} works for its files; or with
+ * {@link java.nio.file.FileSystems#newFileSystem(Path, ClassLoader)}, which does not register it. The registries are read
+ * the first time a package is opened, and shared by every file system.
+ */
+public class DBPFFileSystemProvider extends FileSystemProvider {
+
+	public static final String SCHEME = "dbpf";
+
+	/** The magic numbers of DBPF and DBBF packages, as little-endian integers. */
+	private static final int DBPF_MAGIC = 0x46504244;
+	private static final int DBBF_MAGIC = 0x46424244;
+
+	/** The file systems opened with a URI, by the real path of their package. */
+	private final Map<Path, DBPFFileSystem> fileSystems = new HashMap<Path, DBPFFileSystem>();
+
+	@Override
+	public String getScheme() {
+		return SCHEME;
+	}
+
+	/** Returns the real path of the package of a <code>dbpf:</code> URI. */
+	private Path getPackagePath(URI uri) throws IOException {
+		if (!SCHEME.equalsIgnoreCase(uri.getScheme())) {
+			throw new IllegalArgumentException("URI scheme is not '" + SCHEME + "'");
+		}
+		String spec = uri.getRawSchemeSpecificPart();
+		int separator = spec.indexOf("!/");
+		if (separator != -1) {
+			spec = spec.substring(0, separator);
+		}
+		try {
+			return Paths.get(new URI(spec)).toRealPath();
+		}
+		catch (URISyntaxException e) {
+			throw new IllegalArgumentException("Invalid package URI: " + spec, e);
+		}
+	}
+
+	/** Returns the path inside the package of a <code>dbpf:</code> URI. */
+	private static String getEntryPath(URI uri) {
+		String spec = uri.getSchemeSpecificPart();
+		int separator = spec.indexOf("!/");
+		if (separator == -1) {
+			throw new IllegalArgumentException("URI has no path inside the package: " + uri);
+		}
+		return spec.substring(separator + 1);
+	}
+
+	@Override
+	public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+		Path packagePath = getPackagePath(uri);
+		synchronized (fileSystems) {
+			if (fileSystems.containsKey(packagePath)) {
+				throw new FileSystemAlreadyExistsException(packagePath.toString());
+			}
+			DBPFFileSystem fileSystem = new DBPFFileSystem(this, packagePath, new HashManager(HashManager.get()));
+			fileSystems.put(packagePath, fileSystem);
+			return fileSystem;
+		}
+	}
+
+	@Override
+	public FileSystem newFileSystem(Path path, Map<String, ?> env) throws IOException {
+		if (!isPackage(path)) {
+			throw new UnsupportedOperationException("Not a package file: " + path);
+		}
+		return new DBPFFileSystem(this, path.toRealPath(), new HashManager(HashManager.get()));
+	}
+
+	/** Tells whether the file starts with the magic number of a package. */
+	private static boolean isPackage(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (magic.hasRemaining() && channel.read(magic) != -1);
+			if (magic.hasRemaining()) {
+				return false;
+			}
+			int value = magic.getInt(0);
+			return value == DBPF_MAGIC || value == DBBF_MAGIC;
+		}
+	}
+
+	@Override
+	public FileSystem getFileSystem(URI uri) {
+		Path packagePath;
+		try {
+			packagePath = getPackagePath(uri);
+		}
+		catch (IOException e) {
+			throw new FileSystemNotFoundException(e.getMessage());
+		}
+		synchronized (fileSystems) {
+			DBPFFileSystem fileSystem = fileSystems.get(packagePath);
+			if (fileSystem == null) {
+				throw new FileSystemNotFoundException(packagePath.toString());
+			}
+			return fileSystem;
+		}
+	}
+
+	void removeFileSystem(DBPFFileSystem fileSystem) {
+		synchronized (fileSystems) {
+			fileSystems.remove(fileSystem.getPackagePath(), fileSystem);
+		}
+	}
+
+	@Override
+	public Path getPath(URI uri) {
+		return ((DBPFFileSystem) getFileSystem(uri)).getPath(getEntryPath(uri));
+	}
+
+	private static DBPFPath toDBPFPath(Path path) {
+		if (!(path instanceof DBPFPath)) {
+			throw new ProviderMismatchException();
+		}
+		return (DBPFPath) path;
+	}
+
+	private static void checkReadOnly(Set<? extends OpenOption> options) {
+		if (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND)) {
+			throw new ReadOnlyFileSystemException();
+		}
+	}
+
+	@Override
+	public InputStream newInputStream(Path path, OpenOption... options) throws IOException {
+		checkReadOnly(Set.of(options));
+		DBPFPath dbpfPath = toDBPFPath(path);
+		return dbpfPath.getFileSystem().newInputStream(dbpfPath);
+	}
+
+	@Override
+	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs) throws IOException {
+		checkReadOnly(options);
+		DBPFPath dbpfPath = toDBPFPath(path);
+		return dbpfPath.getFileSystem().newByteChannel(dbpfPath);
+	}
+
+	@Override
+	public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter) throws IOException {
+		DBPFPath dbpfPath = toDBPFPath(dir);
+		return dbpfPath.getFileSystem().newDirectoryStream(dbpfPath, filter);
+	}
+
+	@Override
+	public void createDirectory(Path dir, FileAttribute<?>... attrs) {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	@Override
+	public void delete(Path path) {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	@Override
+	public void copy(Path source, Path target, CopyOption... options) {
+		// Copies to other file systems do not come here, they are done with streams
+		throw new ReadOnlyFileSystemException();
+	}
+
+	@Override
+	public void move(Path source, Path target, CopyOption... options) {
+		throw new ReadOnlyFileSystemException();
+	}
+
+	@Override
+	public boolean isSameFile(Path path, Path path2) throws IOException {
+		if (path.equals(path2)) {
+			return true;
+		}
+		if (!(path2 instanceof DBPFPath) || path.getFileSystem() != path2.getFileSystem()) {
+			return false;
+		}
+		return path.toRealPath().equals(path2.toRealPath());
+	}
+
+	@Override
+	public boolean isHidden(Path path) {
+		return false;
+	}
+
+	@Override
+	public FileStore getFileStore(Path path) throws IOException {
+		DBPFPath dbpfPath = toDBPFPath(path);
+		dbpfPath.getFileSystem().getAttributes(dbpfPath);
+		return dbpfPath.getFileSystem().getFileStore();
+	}
+
+	@Override
+	public void checkAccess(Path path, AccessMode... modes) throws IOException {
+		DBPFPath dbpfPath = toDBPFPath(path);
+		dbpfPath.getFileSystem().getAttributes(dbpfPath);
+		for (AccessMode mode : modes) {
+			if (mode != AccessMode.READ) {
+				throw new AccessDeniedException(path.toString(), null, "Package files can only be read");
+			}
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+		DBPFPath dbpfPath = toDBPFPath(path);
+		if (type != BasicFileAttributeView.class) {
+			return null;
+		}
+		return (V) new BasicFileAttributeView() {
+			@Override
+			public String name() {
+				return "basic";
+			}
+
+			@Override
+			public BasicFileAttributes readAttributes() throws IOException {
+				return dbpfPath.getFileSystem().getAttributes(dbpfPath);
+			}
+
+			@Override
+			public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) {
+				throw new ReadOnlyFileSystemException();
+			}
+		};
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options) throws IOException {
+		DBPFPath dbpfPath = toDBPFPath(path);
+		if (type != BasicFileAttributes.class) {
+			throw new UnsupportedOperationException("Unsupported attributes: " + type.getName());
+		}
+		return (A) dbpfPath.getFileSystem().getAttributes(dbpfPath);
+	}
+
+	@Override
+	public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+		int colon = attributes.indexOf(':');
+		if (colon != -1) {
+			String view = attributes.substring(0, colon);
+			if (!view.equals("basic")) {
+				throw new UnsupportedOperationException("Unsupported attribute view: " + view);
+			}
+			attributes = attributes.substring(colon + 1);
+		}
+
+		BasicFileAttributes values = readAttributes(path, BasicFileAttributes.class, options);
+		Map<String, Object> all = new LinkedHashMap<String, Object>();
+		all.put("lastModifiedTime", values.lastModifiedTime());
+		all.put("lastAccessTime", values.lastAccessTime());
+		all.put("creationTime", values.creationTime());
+		all.put("size", values.size());
+		all.put("isRegularFile", values.isRegularFile());
+		all.put("isDirectory", values.isDirectory());
+		all.put("isSymbolicLink", values.isSymbolicLink());
+		all.put("isOther", values.isOther());
+		all.put("fileKey", values.fileKey());
+
+		if (attributes.equals("*")) {
+			return all;
+		}
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		for (String name : attributes.split(",")) {
+			if (name.equals("*")) {
+				result.putAll(all);
+			} else if (all.containsKey(name)) {
+				result.put(name, all.get(name));
+			} else {
+				throw new IllegalArgumentException("Unknown attribute: " + name);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void setAttribute(Path path, String attribute, Object value, LinkOption... options) {
+		throw new ReadOnlyFileSystemException();
+	}
+}
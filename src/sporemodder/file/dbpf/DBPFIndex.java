@@ -19,9 +19,12 @@
 package sporemodder.file.dbpf;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.List;
 
+import sporemodder.file.filestructures.MappedFileStream;
 import sporemodder.file.filestructures.StreamReader;
 import sporemodder.file.filestructures.StreamWriter;
 
@@ -34,6 +37,9 @@ public class DBPFIndex {
 	/** A list with all the items in the index. This only stores the items metadata such as the size, compression, etc, but not the data itself. */
 	public final List<DBPFItem> items = new ArrayList<DBPFItem>();
 	
+	/** The index entries are read in blocks of up to this size. */
+	private static final int READ_BLOCK_SIZE = 4 * 1024 * 1024;
+	
 	/** The position where the items metadata is stored. Only used for reading. */
 	private long itemsOffset;
 
@@ -90,33 +96,92 @@ public class DBPFIndex {
 			stream.writeLEInt(typeID);
 		}
 		if (groupID != -1) {
-			stream.writeLEInt(typeID);
+			stream.writeLEInt(groupID);
 		}
 		
 		// The unknown value
 		stream.writeLEInt(0);
 	}
 	
+	@FunctionalInterface
+	private static interface EntryBlockReader {
+		public void read(ByteBuffer buffer, int count) throws IOException;
+	}
+	
+	/**
+	 * Reads the items of this index. The entries are read in big blocks and decoded from memory, instead of reading
+	 * each field from the stream; memory-mapped streams are decoded directly from the mapped file.
+	 * @param stream The package stream; afterwards, it is positioned after the last entry.
+	 * @param numItems The number of items, as stored in the header.
+	 * @param isDBBF Whether the package uses 64-bit offsets.
+	 * @throws IOException
+	 */
 	public void readItems(StreamReader stream, int numItems, boolean isDBBF) throws IOException {
-		stream.seek(itemsOffset);
-		
 		boolean readGroup = groupID == -1;
 		boolean readType = typeID == -1;
 		
-		for (int i = 0; i < numItems; i++) {
-			
-			DBPFItem item = new DBPFItem();
+		readEntryBlocks(stream, numItems, DBPFItem.getEntrySize(isDBBF, readType, readGroup), (buffer, count) -> {
+			for (int j = 0; j < count; j++) {
+				DBPFItem item = new DBPFItem();
+				
+				if (!readGroup) {
+					item.name.setGroupID(groupID);
+				}
+				if (!readType) {
+					item.name.setTypeID(typeID);
+				}
+				item.read(buffer, isDBBF, readType, readGroup);
+				
+				items.add(item);
+			}
+		});
+	}
+	
+	/**
+	 * Reads the items of this index into a {@link CompactIndex}, without creating a {@link DBPFItem} for each one.
+	 * The items list of this index is not modified.
+	 * @param stream The package stream; afterwards, it is positioned after the last entry.
+	 * @param numItems The number of items, as stored in the header.
+	 * @param isDBBF Whether the package uses 64-bit offsets.
+	 * @throws IOException
+	 */
+	public CompactIndex readCompactItems(StreamReader stream, int numItems, boolean isDBBF) throws IOException {
+		CompactIndex compactIndex = new CompactIndex(numItems);
+		
+		readEntryBlocks(stream, numItems, DBPFItem.getEntrySize(isDBBF, typeID == -1, groupID == -1), 
+				(buffer, count) -> compactIndex.read(buffer, count, isDBBF, typeID, groupID));
+		
+		return compactIndex;
+	}
+	
+	private void readEntryBlocks(StreamReader stream, int numItems, int entrySize, EntryBlockReader reader) throws IOException {
+		int blockItems = Math.max(1, READ_BLOCK_SIZE / entrySize);
+		byte[] block = null;
+		
+		long offset = itemsOffset;
+		for (int i = 0; i < numItems; ) {
+			int count = Math.min(blockItems, numItems - i);
+			int size = count * entrySize;
 			
-			if (!readGroup) {
-				item.name.setGroupID(groupID);
+			ByteBuffer buffer;
+			if (stream instanceof MappedFileStream) {
+				buffer = ((MappedFileStream) stream).slice(offset, size);
 			}
-			if (!readType) {
-				item.name.setTypeID(typeID);
+			else {
+				if (block == null) {
+					block = new byte[Math.min(numItems, blockItems) * entrySize];
+				}
+				stream.seek(offset);
+				stream.read(block, 0, size);
+				buffer = ByteBuffer.wrap(block, 0, size);
 			}
-			item.read(stream, isDBBF, readType, readGroup);
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			reader.read(buffer, count);
 			
-			items.add(item);
+			offset += size;
+			i += count;
 		}
+		stream.seek(offset);
 	}
 	
 	public void writeItems(StreamWriter stream, boolean isDBBF) throws IOException {
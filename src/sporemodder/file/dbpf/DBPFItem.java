@@ -19,8 +19,19 @@
 
 package sporemodder.file.dbpf;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
+import sporemodder.file.filestructures.FileStream;
+import sporemodder.file.filestructures.MappedFileStream;
 import sporemodder.file.filestructures.MemoryStream;
 import sporemodder.file.filestructures.StreamReader;
 import sporemodder.file.filestructures.StreamWriter;
@@ -41,6 +52,10 @@ public class DBPFItem {
 	/** This is used in memory by the game, but it is irrelevant in .package files; always true. */
 	public boolean isSaved = true;
 	
+	/** Compressed items up to this size are read into a per-thread buffer that is reused between items. */
+	private static final int MAX_SCRATCH_SIZE = 4 * 1024 * 1024;
+	private static final ThreadLocal<byte[]> SCRATCH_BUFFER = new ThreadLocal<>();
+	
 	
 	public void read(StreamReader stream, boolean isDBBF, boolean readType, boolean readGroup) throws IOException {
 		
@@ -70,6 +85,45 @@ public class DBPFItem {
 		stream.skip(1);
 	}
 	
+	/**
+	 * Reads the index entry of this item from a buffer, which must be in little-endian order. This reads the same fields as
+	 * {@link #read(StreamReader, boolean, boolean, boolean)}, which are {@link #getEntrySize(boolean, boolean, boolean)} bytes long.
+	 */
+	public void read(ByteBuffer buffer, boolean isDBBF, boolean readType, boolean readGroup) throws IOException {
+		
+		if (readType) {
+			name.setTypeID(buffer.getInt());
+		}
+		if (readGroup) {
+			name.setGroupID(buffer.getInt());
+		}
+		name.setInstanceID(buffer.getInt());
+		
+		chunkOffset = isDBBF ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
+		
+		compressedSize = buffer.getInt() & 0x7FFFFFFF;
+		memSize = buffer.getInt();
+		
+		switch(buffer.getShort()) {
+			case 0: isCompressed = false;
+					break;
+			case -1: isCompressed = true;
+					break;
+			default: throw new IOException("Unknown compression label on index entry position " + (buffer.position() - 2));
+		}
+		
+		isSaved = buffer.get() != 0;
+		// Padding
+		buffer.get();
+	}
+	
+	/**
+	 * Returns how many bytes the index entry of an item takes.
+	 */
+	public static int getEntrySize(boolean isDBBF, boolean hasType, boolean hasGroup) {
+		return (hasType ? 4 : 0) + (hasGroup ? 4 : 0) + 4 + (isDBBF ? 8 : 4) + 4 + 4 + 2 + 1 + 1;
+	}
+	
 	public void write(StreamWriter stream, boolean isDBBF, boolean writeType, boolean writeGroup) throws IOException {
 		if (writeType) {
 			stream.writeLEInt(name.getTypeID());
@@ -94,21 +148,227 @@ public class DBPFItem {
 	}
 	
 	public MemoryStream processFile(StreamReader in) throws IOException {
+		if (in instanceof MappedFileStream || !isCompressed) {
+			return decodeRawData(readRawBuffer(in));
+		}
+		
+		// The compressed data is only needed until it is decoded, so it is read into a reusable buffer
+		byte[] raw = compressedSize <= MAX_SCRATCH_SIZE ? SCRATCH_BUFFER.get() : null;
+		if (raw == null || raw.length < compressedSize) {
+			raw = new byte[compressedSize];
+			if (compressedSize <= MAX_SCRATCH_SIZE) {
+				SCRATCH_BUFFER.set(raw);
+			}
+		}
+		in.seek(chunkOffset);
+		in.read(raw, 0, compressedSize);
+		
+		byte[] out = new byte[memSize];
+		RefPackCompression.decompress(raw, 0, compressedSize, out, 0);
+		return new MemoryStream(out);
+	}
+	
+	/**
+	 * Reads the data of this item as it is stored in the package, without decompressing it.
+	 * @param in The package stream.
+	 * @return An array with the raw data; its size is the compressed size if the item is compressed, or the memory size otherwise.
+	 */
+	public byte[] readRawData(StreamReader in) throws IOException {
 		in.seek(chunkOffset);
 		
+		byte[] arr = new byte[isCompressed ? compressedSize : memSize];
+		in.read(arr);
+		return arr;
+	}
+	
+	/**
+	 * Returns the data of this item as it is stored in the package, without decompressing it. If the package is
+	 * memory-mapped, the returned buffer is a view of the mapped file and no data is copied; otherwise the data is read
+	 * into a new array, like {@link #readRawData(StreamReader)}.
+	 * @param in The package stream.
+	 * @return A buffer with the raw data, from its position to its limit.
+	 */
+	public ByteBuffer readRawBuffer(StreamReader in) throws IOException {
+		int size = isCompressed ? compressedSize : memSize;
+		if (in instanceof MappedFileStream) {
+			return ((MappedFileStream) in).slice(chunkOffset, size);
+		}
+		return ByteBuffer.wrap(readRawData(in));
+	}
+	
+	/**
+	 * Decompresses the raw data of this item, as returned by {@link #readRawData(StreamReader)}. This does not need the package stream,
+	 * so it can be called from any thread.
+	 * @param raw The raw data of this item.
+	 * @return A stream with the uncompressed data.
+	 */
+	public MemoryStream decodeRawData(byte[] raw) throws IOException {
+		return decodeRawData(ByteBuffer.wrap(raw));
+	}
+	
+	/**
+	 * Decompresses the raw data of this item, as returned by {@link #readRawBuffer(StreamReader)}. This does not need the package stream,
+	 * so it can be called from any thread. The position of the buffer is not modified.
+	 * @param raw The raw data of this item, from the position to the limit of the buffer.
+	 * @return A stream with the uncompressed data.
+	 */
+	public MemoryStream decodeRawData(ByteBuffer raw) throws IOException {
 		if (isCompressed) {
-			byte[] arr = new byte[compressedSize];
-			in.read(arr);
-			
 			byte[] out = new byte[memSize];
-			RefPackCompression.decompressFast(arr, out);
+			RefPackCompression.decompress(raw.duplicate(), ByteBuffer.wrap(out));
 			
 			return new MemoryStream(out);
 		}
+		else if (raw.hasArray() && raw.arrayOffset() == 0 && raw.position() == 0 && raw.remaining() == raw.array().length) {
+			return new MemoryStream(raw.array());
+		}
 		else {
-			byte[] arr = new byte[memSize];
-			in.read(arr);
-			return new MemoryStream(arr);
+			byte[] out = new byte[raw.remaining()];
+			raw.duplicate().get(out);
+			return new MemoryStream(out);
+		}
+	}
+	
+	/**
+	 * Returns a stream that reads the uncompressed data of this item incrementally. Compressed items are decoded with a
+	 * {@link RefPackInputStream}, so the memory used does not depend on the size of the item.
+	 * <p>
+	 * If the package is memory-mapped, the returned stream reads a view of the mapped file and can be used from any thread.
+	 * Otherwise it reads from the package stream, seeking to its own position on every read, so it must only be used by the
+	 * thread that owns the package stream.
+	 * @param in The package stream.
+	 * @return A stream with the uncompressed data; it does not close the package stream.
+	 */
+	public InputStream openStream(StreamReader in) throws IOException {
+		int size = isCompressed ? compressedSize : memSize;
+		InputStream raw;
+		if (in instanceof MappedFileStream) {
+			raw = new BufferInputStream(((MappedFileStream) in).slice(chunkOffset, size));
+		}
+		else {
+			raw = new BufferedInputStream(new ReaderInputStream(in, chunkOffset, size));
+		}
+		return isCompressed ? new RefPackInputStream(raw) : raw;
+	}
+	
+	/**
+	 * Copies the data of this item into the given file, directly from the channel of the package file. This uses
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so the data is never copied into the Java heap.
+	 * It can only be used with items that are not compressed.
+	 * @param in The channel of the package file.
+	 * @param baseOffset The position of the package inside the channel; this is the base offset of the package stream.
+	 * @param outputFile The file where the data will be written, it is replaced if it already exists.
+	 * @throws IOException
+	 */
+	public void transferTo(FileChannel in, long baseOffset, File outputFile) throws IOException {
+		if (isCompressed) {
+			throw new IllegalStateException("Compressed items cannot be transferred directly");
+		}
+		try (FileChannel out = FileChannel.open(outputFile.toPath(), 
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			
+			long position = baseOffset + chunkOffset;
+			long remaining = memSize;
+			while (remaining > 0) {
+				long transferred = in.transferTo(position, remaining, out);
+				if (transferred <= 0) {
+					throw new EOFException("Unexpected end of package when copying item at position " + position);
+				}
+				position += transferred;
+				remaining -= transferred;
+			}
+		}
+	}
+	
+	/**
+	 * Writes the uncompressed data of this item into the given file, decoding it incrementally with {@link #openStream(StreamReader)}.
+	 * Only a small, fixed amount of memory is used, no matter how big the item is.
+	 * @param in The package stream.
+	 * @param outputFile The file where the data will be written, it is replaced if it already exists.
+	 * @throws IOException
+	 */
+	public void streamToFile(StreamReader in, File outputFile) throws IOException {
+		try (InputStream data = openStream(in)) {
+			Files.copy(data, outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Returns the channel of the package file that the given stream reads, or null if the stream is not backed by a file.
+	 */
+	static FileChannel getFileChannel(StreamReader in) {
+		if (in instanceof MappedFileStream) {
+			return ((MappedFileStream) in).getChannel();
+		}
+		else if (in instanceof FileStream) {
+			return ((FileStream) in).getChannel();
+		}
+		return null;
+	}
+	
+	/** Reads the remaining bytes of a buffer; the buffer is not shared with other streams. */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+		
+		private BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+		
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (!buffer.hasRemaining()) return -1;
+			
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+		
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+	
+	/** Reads a region of a stream, seeking to the position of this reader before every read. */
+	private static class ReaderInputStream extends InputStream {
+		private final StreamReader in;
+		private long position;
+		private final long end;
+		
+		private ReaderInputStream(StreamReader in, long offset, int size) {
+			this.in = in;
+			this.position = offset;
+			this.end = offset + size;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if (position >= end) return -1;
+			in.seek(position++);
+			return in.readUByte();
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (position >= end) return -1;
+			
+			len = (int) Math.min(len, end - position);
+			in.seek(position);
+			in.read(b, off, len);
+			position += len;
+			return len;
+		}
+		
+		@Override
+		public int available() {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
 		}
 	}
 }
@@ -0,0 +1,223 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+import sporemodder.HashManager;
+
+/**
+ * An item filter that selects items by the values of their index entry: group and type names, a pattern for the instance
+ * name, a list of keys, and a range of uncompressed sizes. Only the index is used, so items that are not selected are never read.
+ * <p>
+ * An item must pass every condition that is set. When several groups, types or keys are given, the item must match one of them.
+ * Names are converted into IDs with the names of each package, so this filter must be given the {@link HashManager} of the package
+ * with {@link #setHashManager(HashManager)} before it is used. Aliases (names that end with <code>~</code>) that are not in the
+ * registries of the package do not match any item.
+ */
+public class DBPFItemSelector implements DBPFUnpacker.DBPFItemFilter {
+
+	private final List<String> groupNames = new ArrayList<String>();
+	private final List<String> typeNames = new ArrayList<String>();
+	/** The keys, as <code>group!instance.type</code> strings; a missing group is 0. */
+	private final List<String> keys = new ArrayList<String>();
+	private Pattern instancePattern;
+	private long minSize = 0;
+	private long maxSize = Long.MAX_VALUE;
+
+	private HashManager hasher;
+	private int[] groupIDs;
+	private int[] typeIDs;
+	private DBPFKeyTable keyTable;
+
+	public DBPFItemSelector() {
+	}
+
+	/**
+	 * Creates a selector with the same conditions as another one. A selector keeps the IDs of the package it is filtering,
+	 * so packages that are unpacked at the same time need a selector each.
+	 */
+	public DBPFItemSelector(DBPFItemSelector other) {
+		groupNames.addAll(other.groupNames);
+		typeNames.addAll(other.typeNames);
+		keys.addAll(other.keys);
+		instancePattern = other.instancePattern;
+		minSize = other.minSize;
+		maxSize = other.maxSize;
+	}
+
+	/** Selects items of the given group; the name can also be an hexadecimal ID like <code>0x40404000</code>. */
+	public void addGroup(String name) {
+		groupNames.add(name);
+		hasher = null;
+	}
+
+	/** Selects items of the given type; the name can also be an hexadecimal ID like <code>0x00B1B104</code>. */
+	public void addType(String name) {
+		typeNames.add(name);
+		hasher = null;
+	}
+
+	/**
+	 * Selects items whose instance name matches the given pattern, ignoring case. A <code>*</code> matches any text and
+	 * a <code>?</code> matches a single character. Instances without a name are matched by their hexadecimal ID, like <code>0x0000ABCD</code>.
+	 */
+	public void setInstancePattern(String glob) {
+		if (glob == null) {
+			instancePattern = null;
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*') {
+				sb.append(".*");
+			} else if (c == '?') {
+				sb.append('.');
+			} else {
+				sb.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		instancePattern = Pattern.compile(sb.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE | Pattern.DOTALL);
+	}
+
+	/**
+	 * Selects the item with the given key. The key can be written as <code>group!instance.type</code>, or as
+	 * <code>group/instance.type</code> like the path of an unpacked file; if the group is omitted it is 0.
+	 * @throws IllegalArgumentException If the key has no type.
+	 */
+	public void addKey(String key) {
+		int typeIndex = key.lastIndexOf('.');
+		if (typeIndex == -1) {
+			throw new IllegalArgumentException("Key has no type: " + key);
+		}
+		keys.add(key);
+		hasher = null;
+	}
+
+	/**
+	 * Reads keys from a text file, one per line, in the format used by {@link #addKey(String)}. Empty lines and lines
+	 * that start with <code>#</code> are ignored.
+	 */
+	public void readKeys(File file) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line;
+			int lineNumber = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				try {
+					addKey(line);
+				}
+				catch (IllegalArgumentException e) {
+					throw new IOException("Malformed key on line " + lineNumber + " of " + file.getName() + ": " + line);
+				}
+			}
+		}
+	}
+
+	/** Selects items whose uncompressed size, in bytes, is between the two values (both included). */
+	public void setSizeRange(long minSize, long maxSize) {
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Converts the names into IDs with the names of the given package. This is done on every call, even if the hash manager
+	 * is the same object, because its names might have changed since the previous package.
+	 */
+	@Override
+	public void setHashManager(HashManager hasher) {
+		this.hasher = hasher;
+
+		groupIDs = null;
+		if (!groupNames.isEmpty()) {
+			groupIDs = groupNames.stream().map(name -> findFileHash(hasher, name))
+					.filter(Objects::nonNull).mapToInt(Integer::intValue).sorted().toArray();
+		}
+
+		typeIDs = null;
+		if (!typeNames.isEmpty()) {
+			typeIDs = typeNames.stream().mapToInt(hasher::getTypeHash).sorted().toArray();
+		}
+
+		keyTable = null;
+		if (!keys.isEmpty()) {
+			keyTable = new DBPFKeyTable(keys.size());
+			for (String key : keys) {
+				int typeIndex = key.lastIndexOf('.');
+				int groupIndex = Math.max(key.lastIndexOf('!', typeIndex), key.lastIndexOf('/', typeIndex));
+				Integer groupID = groupIndex == -1 ? Integer.valueOf(0) : findFileHash(hasher, key.substring(0, groupIndex));
+				Integer instanceID = findFileHash(hasher, key.substring(groupIndex + 1, typeIndex));
+				if (groupID != null && instanceID != null) {
+					int typeID = hasher.getTypeHash(key.substring(typeIndex + 1));
+					keyTable.putIfAbsent(groupID, instanceID, typeID, 0);
+				}
+			}
+		}
+	}
+
+	/** Returns the ID of a group or instance name, or null if it is an alias that is not in the registries of the package. */
+	private static Integer findFileHash(HashManager hasher, String name) {
+		try {
+			return hasher.getFileHash(name);
+		}
+		catch (IllegalArgumentException e) {
+			if (name.endsWith("~")) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean filter(DBPFItem item) {
+		if (hasher == null) {
+			throw new IllegalStateException("The names of the package must be set with setHashManager() before filtering");
+		}
+		if (item.memSize < minSize || item.memSize > maxSize) {
+			return false;
+		}
+		if (groupIDs != null && Arrays.binarySearch(groupIDs, item.name.getGroupID()) < 0) {
+			return false;
+		}
+		if (typeIDs != null && Arrays.binarySearch(typeIDs, item.name.getTypeID()) < 0) {
+			return false;
+		}
+		if (keyTable != null && !keyTable.containsKey(item.name.getGroupID(), item.name.getInstanceID(), item.name.getTypeID())) {
+			return false;
+		}
+		if (instancePattern != null && !instancePattern.matcher(hasher.getFileName(item.name.getInstanceID())).matches()) {
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,151 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import sporemodder.file.ResourceKey;
+
+/**
+ * A hash table that maps resource keys, given as their group, instance and type IDs, to non-negative integers such as
+ * the position of an item in an index. It uses open addressing over primitive arrays, so it does not create any object
+ * per key, and lookups take constant time.
+ */
+public class DBPFKeyTable {
+
+	/** The value returned when a key is not in the table. */
+	public static final int NOT_FOUND = -1;
+
+	private int[] groupIDs;
+	private int[] instanceIDs;
+	private int[] typeIDs;
+	/** The value of each slot plus one, so that 0 marks an empty slot. */
+	private int[] values;
+	private int mask;
+	private int size;
+
+	/**
+	 * Creates a table that can hold the given amount of keys without growing.
+	 */
+	public DBPFKeyTable(int expectedKeys) {
+		// Keep the table at most half full, so probe sequences stay short
+		int capacity = Integer.highestOneBit(Math.max(8, expectedKeys) * 2 - 1) << 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		groupIDs = new int[capacity];
+		instanceIDs = new int[capacity];
+		typeIDs = new int[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/** Returns how many keys are in the table. */
+	public int size() {
+		return size;
+	}
+
+	private static int hash(int groupID, int instanceID, int typeID) {
+		int h = groupID * 0x9E3779B1;
+		h = (h ^ instanceID) * 0x85EBCA6B;
+		h = (h ^ typeID) * 0xC2B2AE35;
+		return h ^ (h >>> 16);
+	}
+
+	/** Returns the slot that contains the key, or the empty slot where it would be inserted. */
+	private int findSlot(int groupID, int instanceID, int typeID) {
+		int slot = hash(groupID, instanceID, typeID) & mask;
+		while (values[slot] != 0 &&
+				(groupIDs[slot] != groupID || instanceIDs[slot] != instanceID || typeIDs[slot] != typeID)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Returns the value of the given key, or {@link #NOT_FOUND} if it is not in the table.
+	 */
+	public int get(int groupID, int instanceID, int typeID) {
+		return values[findSlot(groupID, instanceID, typeID)] - 1;
+	}
+
+	public int get(ResourceKey key) {
+		return get(key.getGroupID(), key.getInstanceID(), key.getTypeID());
+	}
+
+	public boolean containsKey(int groupID, int instanceID, int typeID) {
+		return values[findSlot(groupID, instanceID, typeID)] != 0;
+	}
+
+	/**
+	 * Sets the value of the given key, replacing the existing one.
+	 * @return The previous value of the key, or {@link #NOT_FOUND} if it was not in the table.
+	 */
+	public int put(int groupID, int instanceID, int typeID, int value) {
+		return insert(groupID, instanceID, typeID, value, true);
+	}
+
+	/**
+	 * Sets the value of the given key only if it is not in the table yet.
+	 * @return The existing value of the key, or {@link #NOT_FOUND} if it was added.
+	 */
+	public int putIfAbsent(int groupID, int instanceID, int typeID, int value) {
+		return insert(groupID, instanceID, typeID, value, false);
+	}
+
+	private int insert(int groupID, int instanceID, int typeID, int value, boolean replace) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Values must not be negative: " + value);
+		}
+		int slot = findSlot(groupID, instanceID, typeID);
+		int previous = values[slot] - 1;
+		if (previous != NOT_FOUND) {
+			if (replace) {
+				values[slot] = value + 1;
+			}
+			return previous;
+		}
+
+		groupIDs[slot] = groupID;
+		instanceIDs[slot] = instanceID;
+		typeIDs[slot] = typeID;
+		values[slot] = value + 1;
+		if (++size * 2 > values.length) {
+			grow();
+		}
+		return NOT_FOUND;
+	}
+
+	private void grow() {
+		int[] oldGroupIDs = groupIDs;
+		int[] oldInstanceIDs = instanceIDs;
+		int[] oldTypeIDs = typeIDs;
+		int[] oldValues = values;
+
+		allocate(oldValues.length * 2);
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != 0) {
+				int slot = findSlot(oldGroupIDs[i], oldInstanceIDs[i], oldTypeIDs[i]);
+				groupIDs[slot] = oldGroupIDs[i];
+				instanceIDs[slot] = oldInstanceIDs[i];
+				typeIDs[slot] = oldTypeIDs[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.logging.Logger;
+
+import sporemodder.HashManager;
+import sporemodder.LoggerManager;
+import sporemodder.file.filestructures.MappedFileStream;
+import sporemodder.file.filestructures.StreamReader;
+
+/**
+ * Prints the items of a package, one line per item, reading only the header and the index of the package. The data of
+ * the items is never read, except for the names file of the package, which is needed to show the names used by the project.
+ * <p>
+ * Lines are written as soon as their item is read, so the memory used does not depend on the size of the output.
+ */
+public class DBPFLister {
+	private static final Logger logger = LoggerManager.getLogger(DBPFLister.class);
+
+	public static enum Format {
+		/** Values separated by tabs, after a line with the name of each column. */
+		TEXT,
+		/** A JSON object per line (JSON Lines). */
+		JSON
+	}
+
+	private final File inputFile;
+	private Format format = Format.TEXT;
+
+	public DBPFLister(File inputFile) {
+		this.inputFile = inputFile;
+	}
+
+	public void setFormat(Format format) {
+		this.format = format;
+	}
+
+	/**
+	 * Writes a line for every item in the index of the package, in index order.
+	 * @param out Where the lines are written; it is not flushed or closed.
+	 * @return The number of items listed.
+	 * @throws IOException
+	 */
+	public int list(Writer out) throws IOException {
+		HashManager hasher = new HashManager(HashManager.get());
+
+		try (StreamReader packageStream = new MappedFileStream(inputFile)) {
+			DatabasePackedFile header = new DatabasePackedFile();
+			header.readHeader(packageStream);
+			header.readIndex(packageStream);
+
+			CompactIndex entries = header.index.readCompactItems(packageStream, header.indexCount, header.isDBBF);
+			logger.fine("File index read. Total items: " + entries.size());
+
+			DBPFUnpacker.findNamesFile(entries, packageStream, hasher);
+
+			if (format == Format.TEXT) {
+				out.write("group\tinstance\ttype\tcompressedSize\tmemSize\tcompressed\toffset\n");
+			}
+
+			StringBuilder sb = new StringBuilder(256);
+			CompactIndex.Cursor cursor = entries.cursor();
+			while (cursor.next()) {
+				sb.setLength(0);
+				String group = hasher.getFileName(cursor.getGroupID());
+				String instance = hasher.getFileName(cursor.getInstanceID());
+				String type = hasher.getTypeName(cursor.getTypeID());
+
+				if (format == Format.JSON) {
+					sb.append("{\"group\":");
+					appendJsonString(sb, group);
+					sb.append(",\"instance\":");
+					appendJsonString(sb, instance);
+					sb.append(",\"type\":");
+					appendJsonString(sb, type);
+					sb.append(",\"compressedSize\":").append(cursor.getCompressedSize());
+					sb.append(",\"memSize\":").append(cursor.getMemSize());
+					sb.append(",\"compressed\":").append(cursor.isCompressed());
+					sb.append(",\"offset\":").append(cursor.getChunkOffset());
+					sb.append("}\n");
+				}
+				else {
+					sb.append(group).append('\t');
+					sb.append(instance).append('\t');
+					sb.append(type).append('\t');
+					sb.append(cursor.getCompressedSize()).append('\t');
+					sb.append(cursor.getMemSize()).append('\t');
+					sb.append(cursor.isCompressed()).append('\t');
+					sb.append(cursor.getChunkOffset()).append('\n');
+				}
+				out.append(sb);
+			}
+
+			return entries.size();
+		}
+	}
+
+	private static void appendJsonString(StringBuilder sb, String value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"': sb.append("\\\""); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\r': sb.append("\\r"); break;
+			case '\t': sb.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+	}
+}
@@ -0,0 +1,238 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * The list of files written by an unpacker, used to skip unchanged items when the same package is unpacked again.
+ * Every entry has the key of the item, its position and sizes in the package, the CRC32C of the written file and the
+ * path of the file relative to the output folder. Items are skipped by comparing their index entry and the size of the file,
+ * so the CRC32C is only informative: it is only calculated for files whose data was in memory, and it is
+ * {@link #NO_HASH} for files that were copied or streamed from the package, as reading them back would double their I/O.
+ * <p>
+ * The manifest is a text file next to the output folder: <code>package</code> lines give a number to every package
+ * file, and every other line is an entry, with its values separated by tabs.
+ */
+public class DBPFManifest {
+
+	private static final String HEADER = "# dbpf_unpacker manifest 1";
+	private static final String PACKAGE_LINE = "package";
+	/** The hash of entries whose file was written without having its data in memory. */
+	public static final int NO_HASH = 0;
+
+	public static class Entry {
+		public final String packagePath;
+		public final int groupID;
+		public final int instanceID;
+		public final int typeID;
+		public final long chunkOffset;
+		public final int compressedSize;
+		public final int memSize;
+		public final boolean isCompressed;
+		/** The CRC32C of the written file, or {@link DBPFManifest#NO_HASH} if it was not calculated. */
+		public final int hash;
+		/** The path of the written file relative to the output folder, always separated with '/'. */
+		public final String path;
+
+		public Entry(String packagePath, DBPFItem item, int hash, String path) {
+			this(packagePath, item.name.getGroupID(), item.name.getInstanceID(), item.name.getTypeID(),
+					item.chunkOffset, item.compressedSize, item.memSize, item.isCompressed, hash, path);
+		}
+
+		private Entry(String packagePath, int groupID, int instanceID, int typeID, long chunkOffset,
+				int compressedSize, int memSize, boolean isCompressed, int hash, String path) {
+			this.packagePath = packagePath;
+			this.groupID = groupID;
+			this.instanceID = instanceID;
+			this.typeID = typeID;
+			this.chunkOffset = chunkOffset;
+			this.compressedSize = compressedSize;
+			this.memSize = memSize;
+			this.isCompressed = isCompressed;
+			this.hash = hash;
+			this.path = path;
+		}
+
+		/**
+		 * Tells whether this entry was written from the same index entry, in the same package, into the same path.
+		 */
+		public boolean matches(String packagePath, DBPFItem item, String path) {
+			return this.packagePath.equals(packagePath)
+					&& groupID == item.name.getGroupID()
+					&& instanceID == item.name.getInstanceID()
+					&& typeID == item.name.getTypeID()
+					&& chunkOffset == item.chunkOffset
+					&& compressedSize == item.compressedSize
+					&& memSize == item.memSize
+					&& isCompressed == item.isCompressed
+					&& this.path.equals(path);
+		}
+	}
+
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final DBPFKeyTable keyTable = new DBPFKeyTable(16);
+
+	/** Returns the file where the manifest of the given output folder is kept. */
+	public static File getManifestFile(File outputFolder) {
+		File folder = outputFolder.getAbsoluteFile();
+		return new File(folder.getParentFile(), folder.getName() + ".manifest");
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/** Returns the entry of the given key, or null if there is none. */
+	public Entry get(int groupID, int instanceID, int typeID) {
+		int index = keyTable.get(groupID, instanceID, typeID);
+		return index == DBPFKeyTable.NOT_FOUND ? null : entries.get(index);
+	}
+
+	/** Adds an entry, replacing the existing entry with the same key. */
+	public void put(Entry entry) {
+		int previous = keyTable.putIfAbsent(entry.groupID, entry.instanceID, entry.typeID, entries.size());
+		if (previous == DBPFKeyTable.NOT_FOUND) {
+			entries.add(entry);
+		} else {
+			entries.set(previous, entry);
+		}
+	}
+
+	/**
+	 * Reads a manifest file. If the file does not exist, the manifest is empty.
+	 * @throws IOException If the file cannot be read or is not a valid manifest.
+	 */
+	public static DBPFManifest read(File file) throws IOException {
+		DBPFManifest manifest = new DBPFManifest();
+		if (!file.isFile()) {
+			return manifest;
+		}
+
+		try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			if (!HEADER.equals(line)) {
+				throw new IOException("Unknown manifest format: " + line);
+			}
+
+			HashMap<Integer, String> packages = new HashMap<Integer, String>();
+			int lineNumber = 1;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] values = line.split("\t", 10);
+				try {
+					if (values[0].equals(PACKAGE_LINE)) {
+						if (values.length != 3) {
+							throw new IOException("Malformed package line " + lineNumber + " in manifest");
+						}
+						packages.put(Integer.parseInt(values[1]), values[2]);
+						continue;
+					}
+					if (values.length != 10) {
+						throw new IOException("Malformed line " + lineNumber + " in manifest");
+					}
+					String packagePath = packages.get(Integer.parseInt(values[0]));
+					if (packagePath == null) {
+						throw new IOException("Unknown package on line " + lineNumber + " in manifest");
+					}
+					manifest.put(new Entry(packagePath,
+							Integer.parseUnsignedInt(values[1], 16),
+							Integer.parseUnsignedInt(values[2], 16),
+							Integer.parseUnsignedInt(values[3], 16),
+							Long.parseLong(values[4]),
+							Integer.parseInt(values[5]),
+							Integer.parseInt(values[6]),
+							values[7].equals("1"),
+							Integer.parseUnsignedInt(values[8], 16),
+							values[9]));
+				}
+				catch (NumberFormatException e) {
+					throw new IOException("Malformed line " + lineNumber + " in manifest", e);
+				}
+			}
+		}
+		return manifest;
+	}
+
+	/**
+	 * Writes the manifest into the given file. It is written into a temporary file first and then moved, so an interrupted
+	 * write never leaves a partial manifest behind.
+	 */
+	public void write(File file) throws IOException {
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		HashMap<String, Integer> packages = new HashMap<String, Integer>();
+
+		try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+			writer.write(HEADER);
+			writer.newLine();
+
+			for (Entry entry : entries) {
+				Integer packageNumber = packages.get(entry.packagePath);
+				if (packageNumber == null) {
+					packageNumber = packages.size();
+					packages.put(entry.packagePath, packageNumber);
+					writer.write(PACKAGE_LINE + "\t" + packageNumber + "\t" + entry.packagePath);
+					writer.newLine();
+				}
+
+				writer.write(packageNumber + "\t"
+						+ String.format("%08x\t%08x\t%08x\t", entry.groupID, entry.instanceID, entry.typeID)
+						+ entry.chunkOffset + "\t"
+						+ entry.compressedSize + "\t"
+						+ entry.memSize + "\t"
+						+ (entry.isCompressed ? "1" : "0") + "\t"
+						+ String.format("%08x", entry.hash) + "\t"
+						+ entry.path);
+				writer.newLine();
+			}
+		}
+
+		try {
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			// Not every file system can move atomically
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/** Returns the CRC32C of the given bytes. */
+	public static int hash(byte[] data, int offset, int length) {
+		CRC32C crc = new CRC32C();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+}
@@ -0,0 +1,325 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A path inside a {@link DBPFFileSystem}. Paths are separated by <code>/</code>, and absolute paths start with it, like
+ * <code>/group/instance.type</code>.
+ */
+public class DBPFPath implements Path {
+
+	private final DBPFFileSystem fileSystem;
+	/** The path without repeated or trailing separators; the root is <code>/</code>. */
+	private final String path;
+	/** The position of the first character of every name. */
+	private final int[] offsets;
+
+	DBPFPath(DBPFFileSystem fileSystem, String path) {
+		this.fileSystem = fileSystem;
+		this.path = clean(path);
+		this.offsets = findOffsets(this.path);
+	}
+
+	private static String clean(String path) {
+		if (path.indexOf('\u0000') != -1) {
+			throw new InvalidPathException(path, "Null character not allowed");
+		}
+		StringBuilder sb = new StringBuilder(path.length());
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c != '/' || sb.length() == 0 || sb.charAt(sb.length() - 1) != '/') {
+				sb.append(c);
+			}
+		}
+		if (sb.length() > 1 && sb.charAt(sb.length() - 1) == '/') {
+			sb.setLength(sb.length() - 1);
+		}
+		return sb.toString();
+	}
+
+	private static int[] findOffsets(String path) {
+		List<Integer> offsets = new ArrayList<Integer>();
+		for (int i = 0; i < path.length(); i++) {
+			if (path.charAt(i) != '/' && (i == 0 || path.charAt(i - 1) == '/')) {
+				offsets.add(i);
+			}
+		}
+		return offsets.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	private static DBPFPath toDBPFPath(Path path) {
+		if (!(path instanceof DBPFPath)) {
+			throw new ProviderMismatchException();
+		}
+		return (DBPFPath) path;
+	}
+
+	/** Returns the names of the path, ignoring <code>.</code> and resolving <code>..</code>. */
+	List<String> getNormalizedNames() {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < offsets.length; i++) {
+			String name = getNameString(i);
+			if (name.equals("..")) {
+				if (!names.isEmpty() && !names.get(names.size() - 1).equals("..")) {
+					names.remove(names.size() - 1);
+				} else if (!isAbsolute()) {
+					names.add(name);
+				}
+			} else if (!name.equals(".")) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	String getNameString(int index) {
+		int end = index + 1 < offsets.length ? offsets[index + 1] - 1 : path.length();
+		return path.substring(offsets[index], end);
+	}
+
+	@Override
+	public DBPFFileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	@Override
+	public boolean isAbsolute() {
+		return path.startsWith("/");
+	}
+
+	@Override
+	public Path getRoot() {
+		return isAbsolute() ? new DBPFPath(fileSystem, "/") : null;
+	}
+
+	@Override
+	public Path getFileName() {
+		if (offsets.length == 0) {
+			// The empty path has itself as its name; the root has no name
+			return path.isEmpty() ? this : null;
+		}
+		return new DBPFPath(fileSystem, getNameString(offsets.length - 1));
+	}
+
+	@Override
+	public Path getParent() {
+		if (offsets.length == 0) {
+			return null;
+		}
+		if (offsets.length == 1) {
+			return getRoot();
+		}
+		return new DBPFPath(fileSystem, path.substring(0, offsets[offsets.length - 1] - 1));
+	}
+
+	@Override
+	public int getNameCount() {
+		return offsets.length;
+	}
+
+	@Override
+	public Path getName(int index) {
+		if (index < 0 || index >= offsets.length) {
+			throw new IllegalArgumentException("Invalid name index: " + index);
+		}
+		return new DBPFPath(fileSystem, getNameString(index));
+	}
+
+	@Override
+	public Path subpath(int beginIndex, int endIndex) {
+		if (beginIndex < 0 || beginIndex >= offsets.length || endIndex > offsets.length || beginIndex >= endIndex) {
+			throw new IllegalArgumentException("Invalid subpath: " + beginIndex + ", " + endIndex);
+		}
+		int end = endIndex < offsets.length ? offsets[endIndex] - 1 : path.length();
+		return new DBPFPath(fileSystem, path.substring(offsets[beginIndex], end));
+	}
+
+	@Override
+	public boolean startsWith(Path other) {
+		if (!(other instanceof DBPFPath)) {
+			return false;
+		}
+		DBPFPath o = (DBPFPath) other;
+		if (o.fileSystem != fileSystem || o.isAbsolute() != isAbsolute() || o.offsets.length > offsets.length) {
+			return false;
+		}
+		if (o.offsets.length == 0) {
+			return o.path.equals(path) || o.isAbsolute();
+		}
+		for (int i = 0; i < o.offsets.length; i++) {
+			if (!o.getNameString(i).equals(getNameString(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean startsWith(String other) {
+		return startsWith(fileSystem.getPath(other));
+	}
+
+	@Override
+	public boolean endsWith(Path other) {
+		if (!(other instanceof DBPFPath)) {
+			return false;
+		}
+		DBPFPath o = (DBPFPath) other;
+		if (o.fileSystem != fileSystem || o.offsets.length > offsets.length) {
+			return false;
+		}
+		if (o.isAbsolute()) {
+			return o.path.equals(path);
+		}
+		if (o.offsets.length == 0) {
+			return path.isEmpty();
+		}
+		int start = offsets.length - o.offsets.length;
+		for (int i = 0; i < o.offsets.length; i++) {
+			if (!o.getNameString(i).equals(getNameString(start + i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean endsWith(String other) {
+		return endsWith(fileSystem.getPath(other));
+	}
+
+	@Override
+	public Path normalize() {
+		String names = String.join("/", getNormalizedNames());
+		return new DBPFPath(fileSystem, isAbsolute() ? "/" + names : names);
+	}
+
+	@Override
+	public Path resolve(Path other) {
+		DBPFPath o = toDBPFPath(other);
+		if (o.isAbsolute()) {
+			return o;
+		}
+		if (o.path.isEmpty()) {
+			return this;
+		}
+		if (path.isEmpty()) {
+			return o;
+		}
+		return new DBPFPath(fileSystem, path + "/" + o.path);
+	}
+
+	@Override
+	public Path resolve(String other) {
+		return resolve(fileSystem.getPath(other));
+	}
+
+	@Override
+	public Path resolveSibling(Path other) {
+		Path parent = getParent();
+		return parent == null ? toDBPFPath(other) : parent.resolve(other);
+	}
+
+	@Override
+	public Path resolveSibling(String other) {
+		return resolveSibling(fileSystem.getPath(other));
+	}
+
+	@Override
+	public Path relativize(Path other) {
+		DBPFPath o = toDBPFPath(other);
+		if (o.isAbsolute() != isAbsolute()) {
+			throw new IllegalArgumentException("Only paths of the same type can be relativized");
+		}
+		List<String> names = getNormalizedNames();
+		List<String> otherNames = o.getNormalizedNames();
+
+		int common = 0;
+		while (common < names.size() && common < otherNames.size() && names.get(common).equals(otherNames.get(common))) {
+			common++;
+		}
+		List<String> result = new ArrayList<String>();
+		for (int i = common; i < names.size(); i++) {
+			result.add("..");
+		}
+		result.addAll(otherNames.subList(common, otherNames.size()));
+		return new DBPFPath(fileSystem, String.join("/", result));
+	}
+
+	@Override
+	public URI toUri() {
+		return fileSystem.getUri(toAbsolutePath().normalize().toString());
+	}
+
+	@Override
+	public DBPFPath toAbsolutePath() {
+		return isAbsolute() ? this : new DBPFPath(fileSystem, "/" + path);
+	}
+
+	@Override
+	public Path toRealPath(LinkOption... options) throws IOException {
+		Path realPath = toAbsolutePath().normalize();
+		fileSystem.provider().checkAccess(realPath);
+		return realPath;
+	}
+
+	@Override
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers) {
+		throw new UnsupportedOperationException("Package files cannot be watched");
+	}
+
+	@Override
+	public int compareTo(Path other) {
+		return path.compareTo(toDBPFPath(other).path);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof DBPFPath)) {
+			return false;
+		}
+		DBPFPath other = (DBPFPath) obj;
+		return other.fileSystem == fileSystem && other.path.equals(path);
+	}
+
+	@Override
+	public int hashCode() {
+		return path.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return path;
+	}
+}
@@ -0,0 +1,100 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The items of a package that will be unpacked, and the file where each one is written. It is decided before anything
+ * is read, so that the output does not depend on the order in which the items are read or finish.
+ * <p>
+ * Items are identified by their position in the plan, which follows the order of the index; this is the order used to report results.
+ * The items are read in a different order, given by {@link #getReadOrder()}, which follows their position in the package file,
+ * so a whole package is read in one forward sweep instead of jumping around the file.
+ */
+public class DBPFReadPlan {
+
+	/** The items, from the last one in the index to the first. */
+	private final List<DBPFItem> items = new ArrayList<DBPFItem>();
+	private final List<File> outputFiles = new ArrayList<File>();
+	private final Set<File> plannedFiles = new HashSet<File>();
+
+	/**
+	 * Tells whether an item will be written into the given file.
+	 */
+	public boolean containsFile(File outputFile) {
+		return plannedFiles.contains(outputFile);
+	}
+
+	/**
+	 * Adds an item to the plan. Items must be added from the last one in the index to the first: if several items are written
+	 * into the same file, only the last one in the index is kept, which is what happens when items are unpacked one after another.
+	 * @param item The item, which must not be modified afterwards.
+	 * @param outputFile The file where the item is written.
+	 * @return False if the item was not added, because a later item is written into the same file.
+	 */
+	public boolean addBackwards(DBPFItem item, File outputFile) {
+		if (!plannedFiles.add(outputFile)) {
+			return false;
+		}
+		items.add(item);
+		outputFiles.add(outputFile);
+		return true;
+	}
+
+	/** Returns the number of items in the plan. */
+	public int size() {
+		return items.size();
+	}
+
+	/** Returns the item at the given position; positions follow the order of the index. */
+	public DBPFItem getItem(int index) {
+		return items.get(items.size() - 1 - index);
+	}
+
+	/** Returns the file where the item at the given position is written. */
+	public File getOutputFile(int index) {
+		return outputFiles.get(outputFiles.size() - 1 - index);
+	}
+
+	/**
+	 * Returns the positions of the items sorted by the offset of their data in the package, which is the order in which they should be read.
+	 * Items with the same offset keep the order of the index.
+	 */
+	public int[] getReadOrder() {
+		int count = items.size();
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		// The sort is stable, so ties keep the index order
+		Arrays.sort(order, (a, b) -> Long.compare(getItem(a).chunkOffset, getItem(b).chunkOffset));
+
+		int[] result = new int[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = order[i];
+		}
+		return result;
+	}
+}
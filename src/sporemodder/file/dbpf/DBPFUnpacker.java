@@ -19,45 +19,71 @@
 package sporemodder.file.dbpf;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 
 import java.io.File;
-import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import sporemodder.LoggerManager;
 import sporemodder.file.filestructures.FileStream;
-import sporemodder.file.filestructures.MemoryStream;
+import sporemodder.file.filestructures.MappedFileStream;
 import sporemodder.file.filestructures.StreamReader;
 import sporemodder.HashManager;
 import sporemodder.file.Converter;
-import sporemodder.file.ResourceKey;
 
 public class DBPFUnpacker {
 	private static final Logger logger = LoggerManager.getLogger(DBPFUnpackingTask.class);
 
+	/**
+	 * Decides which items are unpacked. The item given to the filter might be reused for other items once it returns,
+	 * so the filter must not keep it.
+	 */
 	@FunctionalInterface
 	public static interface DBPFItemFilter {
 		public boolean filter(DBPFItem item);
+
+		/**
+		 * Called before the items of each package are filtered, with the hash manager that has the names used by that package.
+		 */
+		public default void setHashManager(HashManager hasher) {
+		}
 	}
 
-	private static final double INDEX_PROGRESS = 0.15;
+	/** How an item is unpacked: it is kept from a previous run, copied from the package file, decoded while written, or read through the pipeline. */
+	private static final byte METHOD_UNCHANGED = 0;
+	private static final byte METHOD_TRANSFER = 1;
+	private static final byte METHOD_STREAM = 2;
+	private static final byte METHOD_READ = 3;
 
 	private final List<File> inputFiles = new ArrayList<File>();
 	private final StreamReader inputStream;
 	private final List<File> failedDBPFs = new ArrayList<File>();
 	private File outputFolder;
-	private final HashMap<DBPFItem, Exception> exceptions = new HashMap<DBPFItem, Exception>();
+	private final HashMap<DBPFItem, Exception> exceptions = new LinkedHashMap<DBPFItem, Exception>();
 	private final List<Converter> converters;
 	private DBPFItemFilter itemFilter;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long maxInflightBytes = DBPFUnpackingPipeline.DEFAULT_MAX_INFLIGHT_BYTES;
+	private DBPFUnpackingPipeline.ItemWriter itemSink;
+	private boolean incremental;
+	private boolean memoryMapped = true;
+	/** The hash manager whose registries are used, or null to read them on every call. */
+	private HashManager baseHasher;
+	/** The manifest of the previous run, used to find unchanged items; only used when unpacking incrementally. */
+	private DBPFManifest previousManifest;
+	/** The manifest of the files written (or kept) by this run. */
+	private DBPFManifest manifest;
 
 	public DBPFUnpacker(File inputFile, File outputFolder, List<Converter> converters) {
 		logger.fine("Initializing DBPFUnpacker with input file: " + inputFile.getAbsolutePath());
@@ -67,16 +93,87 @@ public class DBPFUnpacker {
 		this.inputStream = null;
 	}
 
-	private static void findNamesFile(List<DBPFItem> items, StreamReader in, HashManager hasher) throws IOException {
+	/**
+	 * Creates an unpacker for several packages, in order of priority: if several packages have an item with the same key,
+	 * only the one in the first package is unpacked.
+	 */
+	public DBPFUnpacker(Collection<File> inputFiles, File outputFolder, List<Converter> converters) {
+		logger.fine("Initializing DBPFUnpacker with " + inputFiles.size() + " input files");
+		this.inputFiles.addAll(inputFiles);
+		this.outputFolder = outputFolder;
+		this.converters = converters;
+		this.inputStream = null;
+	}
+
+	/**
+	 * Sets a filter that decides which items are unpacked. It is only given the index entry of each item, so items that are
+	 * not selected are never read; setting it to null unpacks every item.
+	 */
+	public void setItemFilter(DBPFItemFilter itemFilter) {
+		this.itemFilter = itemFilter;
+	}
+
+	/**
+	 * Sets how many threads are used to decompress items, and how many are used to write them.
+	 * The unpacked files are the same regardless of the number of threads.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Sets the maximum amount of item data (compressed and decompressed) that can be held in memory at once.
+	 */
+	public void setMaxInflightBytes(long maxInflightBytes) {
+		this.maxInflightBytes = maxInflightBytes;
+	}
+
+	/**
+	 * Sets a writer that receives the decompressed data of every unpacked item, instead of writing it to the output folder.
+	 * Converters are not used and no files are written. This is used to measure unpacking without the cost of the disk;
+	 * setting it to null restores the default behaviour.
+	 */
+	public void setItemSink(DBPFUnpackingPipeline.ItemWriter itemSink) {
+		this.itemSink = itemSink;
+	}
+
+	/**
+	 * Sets whether package files are memory-mapped (the default) or read with regular reads. Memory-mapping is usually faster,
+	 * but regular reads can be better on network drives; then the chunks of neighbouring items are read together, see {@link DBPFChunkReader}.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * Sets whether the unpacker keeps a manifest of the written files next to the output folder, see {@link DBPFManifest}.
+	 * When it does, items that have not changed since the last run are not read again: an item is skipped if its index entry
+	 * is the same as the one in the manifest and its file is still there with the same size. Items that are converted are
+	 * always unpacked.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * Sets an initialized hash manager whose registries are used instead of the shared ones from {@link HashManager#get()}.
+	 * It is not modified, so the same one can be given to several unpackers that run at the same time.
+	 */
+	public void setHashManager(HashManager hasher) {
+		this.baseHasher = hasher;
+	}
+
+	static void findNamesFile(CompactIndex entries, StreamReader in, HashManager hasher) throws IOException {
 		logger.fine("Searching for names file...");
 		int group = hasher.getFileHash("sporemaster");
 		int name = hasher.getFileHash("names");
 
-		for (DBPFItem item : items) {
-			if (item.name.getGroupID() == group && item.name.getInstanceID() == name) {
+		// The names file can have any type, so it cannot be looked up by its key
+		CompactIndex.Cursor cursor = entries.cursor();
+		while (cursor.next()) {
+			if (cursor.getGroupID() == group && cursor.getInstanceID() == name) {
 				logger.fine("Names file found. Reading project registry...");
-				try (ByteArrayInputStream arrayStream = new ByteArrayInputStream(item.processFile(in).getRawData());
-					 BufferedReader reader = new BufferedReader(new InputStreamReader(arrayStream))) {
+				try (BufferedReader reader = new BufferedReader(new InputStreamReader(entries.getItem(cursor.index()).openStream(in), StandardCharsets.UTF_8))) {
 					hasher.getProjectRegistry().read(reader);
 				}
 				logger.fine("Project registry read successfully.");
@@ -86,153 +183,346 @@ public class DBPFUnpacker {
 		logger.fine("Names file not found.");
 	}
 
-	private void loadRegistry(HashManager hasher) {
-		logger.fine("Attempting to load registry file...");
-
-		// Tenta carregar do diretório de execução
-		File externalFile = new File("reg_file.txt");
-		if (externalFile.exists()) {
-			try {
-				logger.fine("Loading registry from external file: " + externalFile.getAbsolutePath());
-				hasher.getProjectRegistry().read(Files.newBufferedReader(externalFile.toPath()));
-				logger.fine("Registry loaded successfully from external file.");
-				return;
-			} catch (IOException e) {
-				logger.warning("Failed to load external registry file: " + e.getMessage());
-			}
-		}
-
-		// Se falhar, tenta carregar do recurso interno
-		try (InputStream is = DBPFUnpacker.class.getResourceAsStream("/reg_file.txt")) {
-			if (is != null) {
-				logger.fine("Loading registry from internal resource.");
-				hasher.getProjectRegistry().read(new BufferedReader(new InputStreamReader(is)));
-				logger.fine("Registry loaded successfully from internal resource.");
-			} else {
-				logger.severe("Registry file not found as internal resource.");
-			}
-		} catch (IOException e) {
-			logger.severe("Failed to load registry file: " + e.getMessage());
+	/** The index of a package and which of its items are selected, read before anything is unpacked. */
+	private static class PackageEntries {
+		/** The package file, or null if it is read from a stream. */
+		private final File file;
+		private final DatabasePackedFile header;
+		private final CompactIndex entries;
+		/** The shared registries with the names file of this package, which is only read once. */
+		private final HashManager hasher;
+		/** The entries that pass the filter and are not skipped by name. */
+		private final BitSet selected;
+		private int skippedItems;
+
+		private PackageEntries(File file, DatabasePackedFile header, CompactIndex entries, HashManager hasher) {
+			this.file = file;
+			this.header = header;
+			this.entries = entries;
+			this.hasher = hasher;
+			this.selected = new BitSet(entries.size());
 		}
 	}
 
-	private void unpackStream(StreamReader packageStream, HashMap<Integer, List<ResourceKey>> writtenFiles) throws IOException, InterruptedException {
-		logger.fine("Starting to unpack stream...");
-		HashManager hasher = new HashManager();
-		hasher.initialize();
-
-		loadRegistry(hasher);
-
+	/**
+	 * Reads the index of a package and decides which of its items are selected. The names file of the package is loaded
+	 * into a hash manager of its own, on top of the shared registries of the given one, which is kept until the package is unpacked.
+	 */
+	private PackageEntries readPackage(StreamReader packageStream, File packageFile, HashManager baseHasher) throws IOException {
 		logger.fine("Reading file index...");
 
 		DatabasePackedFile header = new DatabasePackedFile();
 		header.readHeader(packageStream);
 		header.readIndex(packageStream);
 
-		DBPFIndex index = header.index;
-		index.readItems(packageStream, header.indexCount, header.isDBBF);
-
+		// Only the items that are unpacked become DBPFItem objects, the rest of the index is kept in compact form
+		CompactIndex entries = header.index.readCompactItems(packageStream, header.indexCount, header.isDBBF);
 		logger.fine("File index read. Total items: " + header.indexCount);
-		logger.fine("Unpacking files...");
 
-		double inc = ((1.0 - INDEX_PROGRESS) / header.indexCount) / inputFiles.size();
+		HashManager hasher = new HashManager(baseHasher);
+		findNamesFile(entries, packageStream, hasher);
+		if (itemFilter != null) {
+			itemFilter.setHashManager(hasher);
+		}
 
-		hasher.getProjectRegistry().clear();
-		findNamesFile(index.items, packageStream, hasher);
+		PackageEntries result = new PackageEntries(packageFile, header, entries, hasher);
 
-		int processedItems = 0;
-		int convertedItems = 0;
-		int skippedItems = 0;
+		// The filter is given the same item every time, so no object is created per entry
+		DBPFItem entryItem = new DBPFItem();
+		CompactIndex.Cursor cursor = entries.cursor();
+		while (cursor.next()) {
+			cursor.copyTo(entryItem);
 
-		for (DBPFItem item : index.items) {
-			processedItems++;
+			if (itemFilter != null && !itemFilter.filter(entryItem)) {
+				result.skippedItems++;
+				continue;
+			}
 
-			if (itemFilter != null && !itemFilter.filter(item)) {
-				skippedItems++;
+			// Skip autolocale files
+			if (cursor.getGroupID() == 0x02FABF01 && hasher.getFileName(cursor.getInstanceID()).startsWith("auto_")) {
+				result.skippedItems++;
 				continue;
 			}
 
-			int groupID = item.name.getGroupID();
-			int instanceID = item.name.getInstanceID();
+			result.selected.set(cursor.index());
+		}
+		return result;
+	}
 
-			if (writtenFiles != null) {
-				List<ResourceKey> list = writtenFiles.get(groupID);
-				if (list != null && list.stream().anyMatch(key -> key.isEquivalent(item.name))) {
-					skippedItems++;
-					continue;
-				}
+	/**
+	 * Decides which package unpacks each key when several packages are unpacked together: the first package in the list
+	 * that has a selected item with that key. Returns a table with the position of the winning package of every key.
+	 */
+	private static DBPFKeyTable resolveWinners(List<PackageEntries> packages) {
+		int totalEntries = 0;
+		for (PackageEntries entries : packages) {
+			totalEntries += entries.selected.cardinality();
+		}
+
+		DBPFKeyTable winners = new DBPFKeyTable(totalEntries);
+		for (int p = 0; p < packages.size(); p++) {
+			CompactIndex entries = packages.get(p).entries;
+			BitSet selected = packages.get(p).selected;
+			for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+				winners.putIfAbsent(entries.getGroupID(i), entries.getInstanceID(i), entries.getTypeID(i), p);
 			}
+		}
+		return winners;
+	}
+
+	/**
+	 * Unpacks the selected items of a package.
+	 * @param packageNumber The position of the package in the list of packages.
+	 * @param winners The winning package of every key, or null if only one package is unpacked.
+	 */
+	private void unpackPackage(StreamReader packageStream, PackageEntries packageEntries, int packageNumber, DBPFKeyTable winners,
+			DBPFUnpackingPipeline pipeline) throws IOException, InterruptedException {
+		logger.fine("Unpacking files...");
+		File packageFile = packageEntries.file;
+		DatabasePackedFile header = packageEntries.header;
+		CompactIndex entries = packageEntries.entries;
+		HashManager hasher = packageEntries.hasher;
+
+		FileChannel packageChannel = DBPFItem.getFileChannel(packageStream);
+		long packageOffset = packageStream.getBaseOffset();
+
+		int skippedItems = packageEntries.skippedItems;
+		int unchangedItems = 0;
+		AtomicInteger convertedItems = new AtomicInteger();
+
+		// Decide which items are written before unpacking anything, so the output is the same regardless of the order
+		// in which the items are read or the threads finish
+		DBPFReadPlan plan = new DBPFReadPlan();
+
+		CompactIndex.Cursor cursor = entries.cursor();
+		cursor.moveTo(entries.size());
 
-			String fileName = hasher.getFileName(instanceID);
+		while (cursor.previous()) {
+			if (!packageEntries.selected.get(cursor.index())) {
+				continue;
+			}
 
-			if (groupID == 0x02FABF01 && fileName.startsWith("auto_")) {
+			int groupID = cursor.getGroupID();
+			int instanceID = cursor.getInstanceID();
+
+			// Keys that are also in higher priority packages are unpacked from those
+			if (winners != null && winners.get(groupID, instanceID, cursor.getTypeID()) != packageNumber) {
 				skippedItems++;
 				continue;
 			}
 
-			File folder = new File(outputFolder, hasher.getFileName(groupID));
-			folder.mkdir();
-
-			try (MemoryStream dataStream = item.processFile(packageStream)) {
-				boolean isConverted = false;
-
-				if (groupID != 0x40404000 || item.name.getTypeID() != 0x00B1B104) {
-					for (Converter converter : converters) {
-						if (converter.isDecoder(item.name)) {
-							logger.fine("Using converter: " + converter.getClass().getSimpleName() + " for item: " + item.name);
-							if (converter.decode(dataStream, folder, item.name)) {
-								isConverted = true;
-								convertedItems++;
-								logger.fine("Converted file: " + item.name);
-								break;
-							}
+			File outputFile = new File(new File(outputFolder, hasher.getFileName(groupID)), hasher.getFileName(instanceID) + "." + hasher.getTypeName(cursor.getTypeID()));
+			if (plan.containsFile(outputFile)) {
+				skippedItems++;
+				continue;
+			}
+
+			plan.addBackwards(cursor.toItem(), outputFile);
+		}
+
+		// Items are read in the order they are in the package, but identified (and reported) by their index order
+		int[] readOrder = plan.getReadOrder();
+
+		Exception[] itemExceptions = new Exception[plan.size()];
+		// The manifest entries of the items, filled by the threads that write them
+		boolean useManifest = manifest != null && packageFile != null;
+		String packagePath = useManifest ? packageFile.getAbsolutePath() : null;
+		DBPFManifest.Entry[] manifestEntries = useManifest ? new DBPFManifest.Entry[plan.size()] : null;
+		int processedItems = 0;
+
+		// Decide how each item is unpacked before reading anything, so that only the data of the items that are read
+		// through the pipeline is included in the reads of the chunk reader
+		byte[] methods = new byte[plan.size()];
+		boolean[] canConvert = new boolean[plan.size()];
+		String[] manifestPaths = useManifest ? new String[plan.size()] : null;
+		List<DBPFItem> readItems = new ArrayList<DBPFItem>();
+
+		for (int i : readOrder) {
+			DBPFItem item = plan.getItem(i);
+			File outputFile = plan.getOutputFile(i);
+
+			canConvert[i] = (item.name.getGroupID() != 0x40404000 || item.name.getTypeID() != 0x00B1B104)
+					&& converters.stream().anyMatch(converter -> converter.isDecoder(item.name));
+
+			String manifestPath = useManifest && !canConvert[i] ?
+					outputFolder.toPath().relativize(outputFile.toPath()).toString().replace(File.separatorChar, '/') : null;
+			DBPFManifest.Entry previousEntry = manifestPath == null ? null :
+					previousManifest.get(item.name.getGroupID(), item.name.getInstanceID(), item.name.getTypeID());
+			if (useManifest) {
+				manifestPaths[i] = manifestPath;
+			}
+
+			if (previousEntry != null && previousEntry.matches(packagePath, item, manifestPath)
+					&& outputFile.isFile() && outputFile.length() == item.memSize) {
+				// The file was written from this same entry by a previous run, so it is neither read nor written again
+				manifestEntries[i] = previousEntry;
+				methods[i] = METHOD_UNCHANGED;
+				unchangedItems++;
+			}
+			else if (itemSink == null && !canConvert[i] && !item.isCompressed && packageChannel != null) {
+				methods[i] = METHOD_TRANSFER;
+			}
+			else if (itemSink == null && !canConvert[i] && item.memSize > DBPFUnpackingPipeline.STREAMING_THRESHOLD && packageStream instanceof MappedFileStream) {
+				methods[i] = METHOD_STREAM;
+			}
+			else {
+				methods[i] = METHOD_READ;
+				readItems.add(item);
+			}
+		}
+
+		// Memory-mapped packages are read by page faults, with no call per item; other streams read neighbouring items together
+		DBPFChunkReader chunkReader = packageStream instanceof MappedFileStream ? null : new DBPFChunkReader(packageStream, readItems);
+
+		try {
+			for (int n = 0; n < readOrder.length; n++) {
+				int i = readOrder[n];
+				DBPFItem item = plan.getItem(i);
+				File outputFile = plan.getOutputFile(i);
+				File folder = outputFile.getParentFile();
+				if (itemSink == null && methods[i] != METHOD_UNCHANGED) {
+					folder.mkdir();
+				}
+
+				int itemIndex = i;
+				DBPFUnpackingPipeline.ItemListener listener = (finishedItem, exception) -> itemExceptions[itemIndex] = exception;
+				boolean canConvertItem = canConvert[i];
+				String manifestPath = useManifest ? manifestPaths[i] : null;
+
+				if (methods[i] == METHOD_UNCHANGED) {
+					// Nothing to do, the manifest entry has already been kept
+				}
+				else if (methods[i] == METHOD_TRANSFER) {
+					// Stored items are copied straight from the package file, their data never reaches the heap
+					pipeline.submitDirect(item, directItem -> {
+						directItem.transferTo(packageChannel, packageOffset, outputFile);
+						logger.fine("Saved raw file: " + outputFile.getAbsolutePath());
+						if (manifestPath != null) {
+							manifestEntries[itemIndex] = new DBPFManifest.Entry(packagePath, directItem, DBPFManifest.NO_HASH, manifestPath);
 						}
-					}
+					}, listener);
 				}
+				else if (methods[i] == METHOD_STREAM) {
+					// Big compressed items are decoded while they are written, so they never take their whole size in memory
+					pipeline.submitDirect(item, directItem -> {
+						directItem.streamToFile(packageStream, outputFile);
+						logger.fine("Saved raw file: " + outputFile.getAbsolutePath());
+						if (manifestPath != null) {
+							manifestEntries[itemIndex] = new DBPFManifest.Entry(packagePath, directItem, DBPFManifest.NO_HASH, manifestPath);
+						}
+					}, listener);
+				}
+				else {
+					DBPFUnpackingPipeline.ItemWriter writer = itemSink != null ? itemSink : (dataItem, dataStream) -> {
+						boolean isConverted = false;
+
+						if (canConvertItem) {
+							for (Converter converter : converters) {
+								if (converter.isDecoder(dataItem.name)) {
+									logger.fine("Using converter: " + converter.getClass().getSimpleName() + " for item: " + dataItem.name);
+									if (converter.decode(dataStream, folder, dataItem.name)) {
+										isConverted = true;
+										convertedItems.incrementAndGet();
+										logger.fine("Converted file: " + dataItem.name);
+										break;
+									}
+								}
+							}
+						}
 
-				if (!isConverted) {
-					String name = hasher.getFileName(item.name.getInstanceID()) + "." + hasher.getTypeName(item.name.getTypeID());
-					File outputFile = new File(folder, name);
-					dataStream.writeToFile(outputFile);
-					logger.fine("Saved raw file: " + outputFile.getAbsolutePath());
+						if (!isConverted) {
+							dataStream.writeToFile(outputFile);
+							logger.fine("Saved raw file: " + outputFile.getAbsolutePath());
+							if (manifestPath != null) {
+								int hash = DBPFManifest.hash(dataStream.getRawData(), 0, (int) dataStream.length());
+								manifestEntries[itemIndex] = new DBPFManifest.Entry(packagePath, dataItem, hash, manifestPath);
+							}
+						}
+					};
+
+					try {
+						if (chunkReader != null) {
+							pipeline.submit(chunkReader, item, writer, listener);
+						} else {
+							pipeline.submit(packageStream, item, writer, listener);
+						}
+					}
+					catch (IOException e) {
+						// Only this item could not be read, the rest of the package is still unpacked
+						itemExceptions[i] = e;
+					}
 				}
 
-				if (writtenFiles != null) {
-					writtenFiles.computeIfAbsent(groupID, k -> new ArrayList<>()).add(item.name);
+				processedItems++;
+				if (processedItems % 100 == 0) {
+					logger.fine("Progress: " + processedItems + " / " + plan.size() + " items submitted");
 				}
 			}
-			catch (Exception e) {
-				logger.warning("Error processing item: " + item.name + ". Error: " + e.getMessage());
-				exceptions.put(item, e);
+			if (chunkReader != null) {
+				logger.fine("Read " + readItems.size() + " items with " + chunkReader.getReadCount() + " reads");
 			}
+		}
+		finally {
+			// Items that are still being written might need the package stream
+			pipeline.awaitCompletion();
+		}
 
-			if (processedItems % 100 == 0) {
-				logger.fine("Progress: " + processedItems + " / " + header.indexCount + " items processed");
+		// Errors are reported in index order, no matter which thread found them
+		for (int i = 0; i < itemExceptions.length; i++) {
+			if (itemExceptions[i] != null) {
+				DBPFItem item = plan.getItem(i);
+				logger.warning("Error processing item: " + item.name + ". Error: " + itemExceptions[i].getMessage());
+				exceptions.put(item, itemExceptions[i]);
+			}
+			else if (useManifest && manifestEntries[i] != null) {
+				manifest.put(manifestEntries[i]);
 			}
 		}
 
 		logger.fine("Unpacking completed. Total items: " + header.indexCount +
-				", Processed: " + processedItems +
+				", Processed: " + plan.size() +
 				", Converted: " + convertedItems +
 				", Skipped: " + skippedItems +
+				", Unchanged: " + unchangedItems +
 				", Errors: " + exceptions.size());
 
 		hasher.getProjectRegistry().clear();
 	}
 
+	private StreamReader openPackage(File inputFile) throws IOException {
+		return memoryMapped ? new MappedFileStream(inputFile) : new FileStream(inputFile, "r");
+	}
+
 	public Exception call() throws Exception {
 		logger.fine("Starting DBPFUnpacker.call()");
 		long initialTime = System.currentTimeMillis();
 
+		if (incremental && itemSink == null) {
+			manifest = new DBPFManifest();
+			try {
+				previousManifest = DBPFManifest.read(DBPFManifest.getManifestFile(outputFolder));
+			}
+			catch (IOException e) {
+				logger.warning("Could not read the manifest, all items will be unpacked. Error: " + e.getMessage());
+				previousManifest = new DBPFManifest();
+			}
+		}
+		else {
+			manifest = null;
+			previousManifest = null;
+		}
+
+		// Only the names of the packages are read here, the registries are shared
+		HashManager hasher = baseHasher != null ? baseHasher : HashManager.get();
+
+		// Read the index of every package first, so that each key is unpacked only once, from the package with the highest priority
+		List<PackageEntries> packages = new ArrayList<PackageEntries>();
 		if (inputStream != null) {
 			logger.fine("Unpacking from input stream");
-			unpackStream(inputStream, null);
+			packages.add(readPackage(inputStream, null, hasher));
 		}
 		else {
 			logger.fine("Unpacking from " + inputFiles.size() + " input files");
-			final HashMap<Integer, List<ResourceKey>> writtenFiles = new HashMap<Integer, List<ResourceKey>>();
-			boolean checkFiles = inputFiles.size() > 1;
-
 			for (File inputFile : inputFiles) {
 				if (!inputFile.exists()) {
 					logger.warning("Input file does not exist: " + inputFile.getAbsolutePath());
@@ -240,19 +530,54 @@ public class DBPFUnpacker {
 					continue;
 				}
 
-				logger.fine("Processing file: " + inputFile.getAbsolutePath());
+				try (StreamReader packageStream = openPackage(inputFile)) {
+					packages.add(readPackage(packageStream, inputFile, hasher));
+				}
+				catch (Exception e) {
+					logger.severe("Error reading file: " + inputFile.getAbsolutePath() + ". Error: " + e.getMessage());
+					return e;
+				}
+			}
+		}
+
+		DBPFKeyTable winners = packages.size() > 1 ? resolveWinners(packages) : null;
+
+		Exception result = null;
+		try (DBPFUnpackingPipeline pipeline = new DBPFUnpackingPipeline(threads, maxInflightBytes)) {
+			for (int p = 0; p < packages.size(); p++) {
+				PackageEntries packageEntries = packages.get(p);
 				for (Converter converter : converters) converter.reset();
 
-				try (StreamReader packageStream = new FileStream(inputFile, "r"))  {
-					unpackStream(packageStream, checkFiles ? writtenFiles : null);
+				if (packageEntries.file == null) {
+					unpackPackage(inputStream, packageEntries, p, winners, pipeline);
+					continue;
+				}
+
+				logger.fine("Processing file: " + packageEntries.file.getAbsolutePath());
+				try (StreamReader packageStream = openPackage(packageEntries.file)) {
+					unpackPackage(packageStream, packageEntries, p, winners, pipeline);
 				}
 				catch (Exception e) {
-					logger.severe("Error unpacking file: " + inputFile.getAbsolutePath() + ". Error: " + e.getMessage());
-					return e;
+					logger.severe("Error unpacking file: " + packageEntries.file.getAbsolutePath() + ". Error: " + e.getMessage());
+					result = e;
+					break;
 				}
 			}
 		}
 
+		if (manifest != null) {
+			// Only the files that were written or kept are in the new manifest, so anything that failed is unpacked again next time
+			File manifestFile = DBPFManifest.getManifestFile(outputFolder);
+			manifest.write(manifestFile);
+			logger.fine("Manifest written with " + manifest.size() + " entries: " + manifestFile.getAbsolutePath());
+			manifest = null;
+			previousManifest = null;
+		}
+
+		if (result != null) {
+			return result;
+		}
+
 		long endTime = System.currentTimeMillis();
 		logger.fine("DBPFUnpacker.call() completed in " + (endTime - initialTime) + "ms");
 		return null;
@@ -0,0 +1,326 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import sporemodder.file.filestructures.MappedFileStream;
+import sporemodder.file.filestructures.MemoryStream;
+import sporemodder.file.filestructures.StreamReader;
+
+/**
+ * Unpacks items in three stages: the raw data of every item is read sequentially on the thread that submits it,
+ * then it is decompressed by a pool of worker threads, and finally a second pool writes it. The stages are linked
+ * by bounded queues, and the amount of item data held in memory at once is limited by a byte budget: when it is
+ * exhausted, {@link #submit(StreamReader, DBPFItem, ItemWriter, ItemListener)} blocks until some item is written.
+ */
+public class DBPFUnpackingPipeline implements AutoCloseable {
+
+	/** Receives the data of an item once it has been decompressed. It is called on one of the writer threads. */
+	@FunctionalInterface
+	public static interface ItemWriter {
+		public void write(DBPFItem item, MemoryStream data) throws Exception;
+	}
+
+	/** A task that writes an item without needing its data in memory, such as copying it straight from the package. */
+	@FunctionalInterface
+	public static interface DirectWriter {
+		public void write(DBPFItem item) throws Exception;
+	}
+
+	/** Notified when an item has gone through the pipeline; the exception is null if it was written successfully. */
+	@FunctionalInterface
+	public static interface ItemListener {
+		public void onFinished(DBPFItem item, Exception exception);
+	}
+
+	/** The default amount of item data (compressed and decompressed) that can be in memory at once. */
+	public static final long DEFAULT_MAX_INFLIGHT_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Items that take more than this once decompressed should be written with {@link #submitDirect(DBPFItem, DirectWriter, ItemListener)}
+	 * and {@link DBPFItem#streamToFile(StreamReader, File)} when the package stream allows it, so they are never held whole in memory.
+	 */
+	public static final int STREAMING_THRESHOLD = 16 * 1024 * 1024;
+
+	/** How many tasks, per thread, can wait in the queue of each stage. */
+	private static final int QUEUE_SIZE_PER_THREAD = 4;
+
+	/** The budget is counted in blocks of this size, so that it fits in the int permits of a Semaphore. */
+	private static final int BUDGET_UNIT = 1024;
+
+	/** Makes the submitting thread wait when a queue is full, instead of rejecting the task. */
+	private static final RejectedExecutionHandler WAIT_WHEN_FULL = (task, executor) -> {
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("The unpacking pipeline has been closed");
+		}
+		try {
+			executor.getQueue().put(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException(e);
+		}
+	};
+
+	private final ThreadPoolExecutor decompressPool;
+	private final ThreadPoolExecutor writerPool;
+
+	private final Semaphore budget;
+	private final int maxPermits;
+
+	/** How many submitted items have not finished yet. */
+	private int pendingItems;
+	private final Object pendingLock = new Object();
+
+	/**
+	 * Creates a pipeline with the given number of decompression and writer threads.
+	 * @param threads How many threads each of the decompression and writer stages use.
+	 * @param maxInflightBytes The maximum amount of item data that can be in memory at once.
+	 */
+	public DBPFUnpackingPipeline(int threads, long maxInflightBytes) {
+		threads = Math.max(1, threads);
+		maxPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInflightBytes / BUDGET_UNIT));
+		budget = new Semaphore(maxPermits);
+
+		decompressPool = createPool("dbpf-decompress", threads);
+		writerPool = createPool("dbpf-writer", threads);
+	}
+
+	private static ThreadPoolExecutor createPool(String name, int threads) {
+		AtomicInteger threadCount = new AtomicInteger();
+		ThreadFactory factory = runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(threads * QUEUE_SIZE_PER_THREAD), factory, WAIT_WHEN_FULL);
+	}
+
+	/** Returns how many budget permits the given amount of bytes takes. Items bigger than the whole budget take all of it. */
+	private int permitsFor(long bytes) {
+		return (int) Math.min(maxPermits, (bytes + BUDGET_UNIT - 1) / BUDGET_UNIT);
+	}
+
+	/**
+	 * Queues the first task of an item. If the task cannot be queued, the item is not counted as pending and its budget
+	 * is given back before the error is thrown.
+	 */
+	private void execute(ThreadPoolExecutor pool, int permits, Runnable task) {
+		synchronized (pendingLock) {
+			pendingItems++;
+		}
+		try {
+			pool.execute(task);
+		}
+		catch (RuntimeException | Error e) {
+			budget.release(permits);
+			itemDone();
+			throw e;
+		}
+	}
+
+	private void itemDone() {
+		synchronized (pendingLock) {
+			pendingItems--;
+			if (pendingItems == 0) {
+				pendingLock.notifyAll();
+			}
+		}
+	}
+
+	private void finishItem(DBPFItem item, int permits, Exception exception, ItemListener listener) {
+		budget.release(permits);
+		try {
+			if (listener != null) listener.onFinished(item, exception);
+		}
+		finally {
+			itemDone();
+		}
+	}
+
+	/**
+	 * Reads the raw data of the item on the calling thread, and queues it to be decompressed and written.
+	 * This blocks while the memory budget is exhausted or the decompression queue is full.
+	 * @param in The package stream, which is only used by the calling thread.
+	 * @param item The item to unpack.
+	 * @param writer Receives the decompressed data of the item.
+	 * @param listener Notified when the item has finished, can be null.
+	 * @throws IOException If the raw data could not be read; in that case the listener is not notified.
+	 * @throws InterruptedException
+	 */
+	public void submit(StreamReader in, DBPFItem item, ItemWriter writer, ItemListener listener) throws IOException, InterruptedException {
+		// Memory-mapped packages are decoded straight from the mapped file, so the compressed data takes no heap memory
+		submit(item, !(in instanceof MappedFileStream), () -> item.readRawBuffer(in), writer, listener);
+	}
+
+	/**
+	 * Same as {@link #submit(StreamReader, DBPFItem, ItemWriter, ItemListener)}, but the raw data is taken from a {@link DBPFChunkReader},
+	 * which reads the chunks of neighbouring items together.
+	 * @param in The reader of the package, which is only used by the calling thread.
+	 * @param item The item to unpack; it must be one of the items of the reader.
+	 * @param writer Receives the decompressed data of the item.
+	 * @param listener Notified when the item has finished, can be null.
+	 * @throws IOException If the raw data could not be read; in that case the listener is not notified.
+	 * @throws InterruptedException
+	 */
+	public void submit(DBPFChunkReader in, DBPFItem item, ItemWriter writer, ItemListener listener) throws IOException, InterruptedException {
+		submit(item, true, () -> in.read(item), writer, listener);
+	}
+
+	@FunctionalInterface
+	private static interface RawDataSource {
+		public ByteBuffer read() throws IOException;
+	}
+
+	private void submit(DBPFItem item, boolean rawInHeap, RawDataSource source, ItemWriter writer, ItemListener listener) throws IOException, InterruptedException {
+		int permits = permitsFor((item.isCompressed && rawInHeap ? (long) item.compressedSize : 0) + item.memSize);
+		budget.acquire(permits);
+
+		ByteBuffer raw;
+		MemoryStream storedData = null;
+		try {
+			raw = source.read();
+			if (!item.isCompressed && raw.hasArray()) {
+				// Stored data that was read into the heap can be used as is, there is nothing to decode
+				storedData = item.decodeRawData(raw);
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			budget.release(permits);
+			throw e;
+		}
+
+		if (storedData != null) {
+			MemoryStream data = storedData;
+			try {
+				execute(writerPool, permits, () -> write(item, data, permits, writer, listener));
+			}
+			catch (RuntimeException | Error e) {
+				data.close();
+				throw e;
+			}
+		}
+		else {
+			execute(decompressPool, permits, () -> decompress(item, raw, permits, writer, listener));
+		}
+	}
+
+	private void decompress(DBPFItem item, ByteBuffer raw, int permits, ItemWriter writer, ItemListener listener) {
+		MemoryStream data = null;
+		boolean queued = false;
+		Exception exception = null;
+		try {
+			data = item.decodeRawData(raw);
+			MemoryStream decodedData = data;
+			writerPool.execute(() -> write(item, decodedData, permits, writer, listener));
+			queued = true;
+		}
+		catch (Exception e) {
+			exception = e;
+		}
+		catch (Error e) {
+			exception = new ExecutionException(e);
+			throw e;
+		}
+		finally {
+			// Once the item is queued to be written, the writer task finishes it
+			if (!queued) {
+				if (data != null) data.close();
+				finishItem(item, permits, exception, listener);
+			}
+		}
+	}
+
+	/**
+	 * Queues a task that writes the item without reading its data first, so it only goes through the writer stage.
+	 * @param item The item to unpack.
+	 * @param writer The task that writes the item.
+	 * @param listener Notified when the item has finished, can be null.
+	 */
+	public void submitDirect(DBPFItem item, DirectWriter writer, ItemListener listener) {
+		execute(writerPool, 0, () -> {
+			Exception exception = null;
+			try {
+				writer.write(item);
+			}
+			catch (Exception e) {
+				exception = e;
+			}
+			catch (Error e) {
+				exception = new ExecutionException(e);
+				throw e;
+			}
+			finally {
+				finishItem(item, 0, exception, listener);
+			}
+		});
+	}
+
+	private void write(DBPFItem item, MemoryStream data, int permits, ItemWriter writer, ItemListener listener) {
+		Exception exception = null;
+		try {
+			writer.write(item, data);
+		}
+		catch (Exception e) {
+			exception = e;
+		}
+		catch (Error e) {
+			// The listener still learns that the item failed, and the error reaches the thread as usual
+			exception = new ExecutionException(e);
+			throw e;
+		}
+		finally {
+			data.close();
+			finishItem(item, permits, exception, listener);
+		}
+	}
+
+	/**
+	 * Waits until every item submitted so far has been written (or has failed).
+	 * @throws InterruptedException
+	 */
+	public void awaitCompletion() throws InterruptedException {
+		synchronized (pendingLock) {
+			while (pendingItems > 0) {
+				pendingLock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Stops the worker threads. Items that are still queued are written before the threads stop.
+	 */
+	@Override
+	public void close() {
+		decompressPool.shutdown();
+		writerPool.shutdown();
+	}
+}
@@ -19,21 +19,22 @@
 package sporemodder.file.dbpf;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.logging.Logger;
 
@@ -42,7 +43,7 @@ import sporemodder.file.Converter;
 
 import sporemodder.HashManager;
 import sporemodder.file.ResourceKey;
-import sporemodder.file.filestructures.FileStream;
+import sporemodder.file.filestructures.MappedFileStream;
 import sporemodder.file.filestructures.MemoryStream;
 import sporemodder.file.filestructures.StreamReader;
 
@@ -79,13 +80,16 @@ public class DBPFUnpackingTask {
 
 
 	/** We will keep all files that couldn't be converted here, so that we can keep unpacking the DBPF. */
-	private final Map<DBPFItem, Exception> exceptions = new HashMap<>();
+	private final Map<DBPFItem, Exception> exceptions = new LinkedHashMap<>();
 	
 	/** How much time the operation took, in milliseconds. */
 	private long ellapsedTime;
 	
 	/** An optional filter that defines which items should be unpacked (true) and which shouldn't (false). */
 	private DBPFItemFilter itemFilter;
+	
+	/** The maximum amount of item data that can be held in memory while unpacking. */
+	private long maxInflightBytes = DBPFUnpackingPipeline.DEFAULT_MAX_INFLIGHT_BYTES;
 
 	
 	//TODO it's faster, but apparently it causes problems; I can't reproduce the bug
@@ -194,6 +198,15 @@ public class DBPFUnpackingTask {
 		return outputFolder;
 	}
 
+	/**
+	 * Sets the maximum amount of item data (compressed and decompressed) that can be held in memory at once.
+	 * When it is reached, reading stops until some of the pending items have been written.
+	 * @param maxInflightBytes
+	 */
+	public void setMaxInflightBytes(long maxInflightBytes) {
+		this.maxInflightBytes = maxInflightBytes;
+	}
+
 	/**
 	 * Returns the project that is being unpacked. This might be null if a file is being unpacked directly.
 	 * @return
@@ -203,24 +216,49 @@ public class DBPFUnpackingTask {
 	}
 
 
-	private static void findNamesFile(List<DBPFItem> items, StreamReader in) throws IOException {
-		HashManager hasher = HashManager.get();
+	private static void findNamesFile(DatabasePackedFile header, StreamReader in, HashManager hasher) throws IOException {
 		int group = hasher.getFileHash("sporemaster");
 		int name = hasher.getFileHash("names");
-		
-		for (DBPFItem item : items) {
+
+		// The names file can have any type, so it cannot be looked up by its key
+		for (DBPFItem item : header.index.items) {
 			if (item.name.getGroupID() == group && item.name.getInstanceID() == name) {
-				try (ByteArrayInputStream arrayStream = new ByteArrayInputStream(item.processFile(in).getRawData());
-						BufferedReader reader = new BufferedReader(new InputStreamReader(arrayStream))) {
+				try (BufferedReader reader = new BufferedReader(new InputStreamReader(item.openStream(in), StandardCharsets.UTF_8))) {
 					hasher.getProjectRegistry().read(reader);
 				}
 			}
 		}
 	}
 
-	private void unpackStream(StreamReader packageStream, Map<Integer, Set<ResourceKey>> writtenFiles, double progressFraction) throws IOException, InterruptedException {
-		logger.fine("Starting to unpack stream");
-		HashManager hasher = HashManager.get();
+	/** A package whose items have been planned, and that is waiting to be (or being) unpacked. */
+	private static class PackageJob {
+		private final File file;
+		private final StreamReader stream;
+		private final DBPFReadPlan plan = new DBPFReadPlan();
+		/** The progress added by each item of the package. */
+		private double progressPerItem;
+		/** The errors of the items, by position in the plan. */
+		private Exception[] itemExceptions;
+		/** The error that stopped the package from being unpacked, if any. */
+		private Exception exception;
+
+		private PackageJob(File file, StreamReader stream) {
+			this.file = file;
+			this.stream = stream;
+		}
+	}
+
+	/**
+	 * Reads the index of a package and decides which of its items are unpacked. Items whose key is in the given table, or whose
+	 * file is in the given set, were planned by a higher priority package, so they are not unpacked; the keys and files planned
+	 * for this package are added to them.
+	 * The names of the package are only used here, so packages can be unpacked at the same time once they are planned.
+	 */
+	private void planPackage(PackageJob job, DBPFKeyTable plannedKeys, Set<File> plannedFiles, int packageNumber, double progressFraction) throws IOException {
+		logger.fine("Starting to plan package");
+		// The names of the package are added on top of the shared registries, without modifying them
+		HashManager hasher = new HashManager(HashManager.get());
+		StreamReader packageStream = job.stream;
 
 		DatabasePackedFile header = new DatabasePackedFile();
 		logger.fine("Reading DBPF header");
@@ -234,132 +272,213 @@ public class DBPFUnpackingTask {
 
 		incProgress(INDEX_PROGRESS * progressFraction);
 		double inc = (1.0 - INDEX_PROGRESS) * progressFraction / header.indexCount;
+		job.progressPerItem = inc;
 
 		logger.fine("Searching for sporemaster/names.txt");
-		hasher.getProjectRegistry().clear();
-		findNamesFile(index.items, packageStream);
+		findNamesFile(header, packageStream, hasher);
 
-		int maxTasks = ForkJoinPool.getCommonPoolParallelism();
-		logger.fine("Max parallel tasks: " + maxTasks);
-
-		int itemIndex = -1;
-		CountDownLatch latch = new CountDownLatch(index.items.size());
-		logger.fine("Processing " + index.items.size() + " items");
-		for (DBPFItem item : index.items) {
-			++itemIndex;
+		// Decide which items are written before reading anything; if several items are written into the same file,
+		// the last one in the index is kept, as if they were unpacked one after another
+		DBPFReadPlan plan = job.plan;
+		List<DBPFItem> items = index.items;
+		for (int i = items.size() - 1; i >= 0; i--) {
+			DBPFItem item = items.get(i);
 
 			if (itemFilter != null && !itemFilter.filter(item)) {
 				logger.fine("Skipping item due to filter: " + item.name);
-				latch.countDown();
 				incProgress(inc);
 				continue;
 			}
-			
+		
 			int groupID = item.name.getGroupID();
 			int instanceID = item.name.getInstanceID();
-			
-			// Skip files if they have already been written by higher priority packages
-			if (writtenFiles != null) {
-				Set<ResourceKey> groupSet = writtenFiles.get(groupID);
-				if (groupSet != null) {
-					if (groupSet.contains(item.name)) {
-						latch.countDown();
-						incProgress(inc);
-						continue;
-					}
-				}
+		
+			// Skip files if they are unpacked from higher priority packages
+			int owner = plannedKeys.get(item.name);
+			if (owner != DBPFKeyTable.NOT_FOUND && owner != packageNumber) {
+				incProgress(inc);
+				continue;
 			}
-			
+		
 			String fileName = hasher.getFileName(instanceID);
-			
+		
 			// skip autolocale files
 			if (groupID == 0x02FABF01 && fileName.startsWith("auto_")) {
-				latch.countDown();
 				incProgress(inc);
 				continue;
 			}
 
+			File outputFile = new File(new File(outputFolder, hasher.getFileName(groupID)), fileName + "." + hasher.getTypeName(item.name.getTypeID()));
+			if (plannedFiles.contains(outputFile) || !plan.addBackwards(item, outputFile)) {
+				incProgress(inc);
+			}
+		}
+
+		for (int i = 0; i < plan.size(); i++) {
+			ResourceKey key = plan.getItem(i).name;
+			plannedKeys.putIfAbsent(key.getGroupID(), key.getInstanceID(), key.getTypeID(), packageNumber);
+			plannedFiles.add(plan.getOutputFile(i));
+		}
+		job.itemExceptions = new Exception[plan.size()];
+	}
+
+	/**
+	 * Reads the items of a planned package and submits them to the pipeline. This does not wait for the items to be written,
+	 * so the stream of the package must be kept open until the pipeline has finished.
+	 */
+	private void submitPackage(PackageJob job, DBPFUnpackingPipeline pipeline) throws IOException, InterruptedException {
+		StreamReader packageStream = job.stream;
+		DBPFReadPlan plan = job.plan;
+		Exception[] itemExceptions = job.itemExceptions;
+		double inc = job.progressPerItem;
+
+		// Stored items are copied straight from the package file when possible
+		FileChannel packageChannel = DBPFItem.getFileChannel(packageStream);
+		long packageOffset = packageStream.getBaseOffset();
+
+		logger.fine("Processing " + plan.size() + " items");
+		// Items are read in the order they are stored, so the package is read in one forward sweep
+		for (int i : plan.getReadOrder()) {
+			DBPFItem item = plan.getItem(i);
+			File outputFile = plan.getOutputFile(i);
+			outputFile.getParentFile().mkdir();
 
 			logger.fine("Processing item: " + item.name);
-			File folder = new File(outputFolder, hasher.getFileName(groupID));
-			folder.mkdir();
-
-			FileConvertAction action = new FileConvertAction(item, folder, item.processFile(packageStream), inc, latch);
-			if (isParallel) {
-				if (itemIndex == index.items.size() - 1 || ForkJoinPool.commonPool().getQueuedSubmissionCount() >= maxTasks) {
-					logger.fine("Executing item in same thread: " + item.name);
-					ForkJoinPool.commonPool().invoke(action);
-				}
-				else {
-					logger.fine("Submitting item to thread pool: " + item.name);
-					ForkJoinPool.commonPool().execute(action);
-				}
+			DBPFUnpackingPipeline.ItemListener listener = (finishedItem, exception) -> {
+				itemExceptions[i] = exception;
+				incProgress(inc);
+			};
+
+			if (!item.isCompressed && packageChannel != null) {
+				pipeline.submitDirect(item, directItem -> directItem.transferTo(packageChannel, packageOffset, outputFile), listener);
+			} else if (item.memSize > DBPFUnpackingPipeline.STREAMING_THRESHOLD && packageStream instanceof MappedFileStream) {
+				pipeline.submitDirect(item, directItem -> directItem.streamToFile(packageStream, outputFile), listener);
 			} else {
-				logger.fine("Processing item sequentially: " + item.name);
-				action.compute();
-			}
-				
-			if (writtenFiles != null) {
-				Set<ResourceKey> groupSet = writtenFiles.get(groupID);
-				if (groupSet == null) {
-					groupSet = new HashSet<>();
-					writtenFiles.put(groupID, groupSet);
-				}
-				groupSet.add(item.name);
+				pipeline.submit(packageStream, item, (dataItem, data) -> data.writeToFile(outputFile), listener);
 			}
 		}
+	}
 
-		logger.fine("Waiting for all files to finish writing");
-		latch.await();
+	/**
+	 * Unpacks the items of a planned package one after another on the calling thread, without a pipeline.
+	 */
+	private void unpackSequentially(PackageJob job) throws IOException {
+		StreamReader packageStream = job.stream;
+		DBPFReadPlan plan = job.plan;
+		FileChannel packageChannel = DBPFItem.getFileChannel(packageStream);
+		long packageOffset = packageStream.getBaseOffset();
+
+		logger.fine("Processing " + plan.size() + " items sequentially");
+		for (int i : plan.getReadOrder()) {
+			DBPFItem item = plan.getItem(i);
+			File outputFile = plan.getOutputFile(i);
+			outputFile.getParentFile().mkdir();
 
-		logger.fine("Clearing extra names from registry");
-		hasher.getProjectRegistry().clear();
+			logger.fine("Processing item: " + item.name);
+			try {
+				if (!item.isCompressed && packageChannel != null) {
+					item.transferTo(packageChannel, packageOffset, outputFile);
+				} else if (item.memSize > DBPFUnpackingPipeline.STREAMING_THRESHOLD && packageStream instanceof MappedFileStream) {
+					item.streamToFile(packageStream, outputFile);
+				} else {
+					try (MemoryStream data = item.processFile(packageStream)) {
+						data.writeToFile(outputFile);
+					}
+				}
+			}
+			catch (Exception e) {
+				job.itemExceptions[i] = e;
+			}
+			incProgress(job.progressPerItem);
+		}
 	}
 
 	public Exception call() throws Exception {
 		logger.fine("DBPFUnpackingTask started");
 		long initialTime = System.currentTimeMillis();
 
-		if (inputStream != null) {
-			logger.fine("Unpacking from input stream");
-			unpackStream(inputStream, null, 1.0);
-		}
-		else {
-			logger.fine("Unpacking from " + inputFiles.size() + " input files");
-			double progressFactor = 1.0;
-			
-			final HashMap<Integer, Set<ResourceKey>> writtenFiles = new HashMap<>();
-			boolean checkFiles = inputFiles.size() > 1;  // only check already existing files if we are unpacking more than one package at once
+		int threads = isParallel ? Runtime.getRuntime().availableProcessors() : 1;
+		List<PackageJob> jobs = new ArrayList<>();
+		try {
+			// Plan every package first, in order of priority. After that, the output of each package does not depend on
+			// the others, so they can all be read at the same time
+			DBPFKeyTable plannedKeys = new DBPFKeyTable(1024);
+			Set<File> plannedFiles = new HashSet<>();
+			if (inputStream != null) {
+				logger.fine("Unpacking from input stream");
+				PackageJob job = new PackageJob(null, inputStream);
+				planPackage(job, plannedKeys, plannedFiles, 0, 1.0);
+				jobs.add(job);
+			}
+			else {
+				logger.fine("Unpacking from " + inputFiles.size() + " input files");
+				double progressFactor = 1.0;
 			
-			long[] fileSizes = new long[inputFiles.size()];
-			long totalFileSize = 0;
-			for (int i = 0; i < fileSizes.length; ++i) {
-				if (inputFiles.get(i).exists()) {
-					fileSizes[i] = Files.size(inputFiles.get(i).toPath());
-					totalFileSize += fileSizes[i];
+				long[] fileSizes = new long[inputFiles.size()];
+				long totalFileSize = 0;
+				for (int i = 0; i < fileSizes.length; ++i) {
+					if (inputFiles.get(i).exists()) {
+						fileSizes[i] = Files.size(inputFiles.get(i).toPath());
+						totalFileSize += fileSizes[i];
+					}
 				}
-			}
 
-			int i = 0;
-			for (File inputFile : inputFiles) {
-				logger.fine("Processing file: " + inputFile.getAbsolutePath());
-				double projectProgress = progressFactor * (double)fileSizes[i] / totalFileSize;
+				for (int i = 0; i < inputFiles.size(); i++) {
+					File inputFile = inputFiles.get(i);
+					logger.fine("Planning file: " + inputFile.getAbsolutePath());
+					double projectProgress = progressFactor * (double)fileSizes[i] / totalFileSize;
+
+					if (!inputFile.exists()) {
+						logger.warning("Input file does not exist: " + inputFile.getAbsolutePath());
+						failedDBPFs.add(inputFile);
+						continue;
+					}
+
+					try {
+						PackageJob job = new PackageJob(inputFile, new MappedFileStream(inputFile));
+						jobs.add(job);
+						planPackage(job, plannedKeys, plannedFiles, jobs.size() - 1, projectProgress);
+					}
+					catch (Exception e) {
+						logger.severe("Error unpacking file: " + inputFile.getAbsolutePath());
+						logger.severe(e.toString());
+						return e;
+					}
+				}
+			}
 
-				if (!inputFile.exists()) {
-					logger.warning("Input file does not exist: " + inputFile.getAbsolutePath());
-					failedDBPFs.add(inputFile);
-					continue;
+			if (inputStream != null) {
+				// A package read from a stream is usually nested in another package, which is being unpacked by the threads
+				// of another pipeline already; starting more threads and another memory budget here would exceed its limits
+				unpackSequentially(jobs.get(0));
+			}
+			else {
+				try (DBPFUnpackingPipeline pipeline = new DBPFUnpackingPipeline(threads, maxInflightBytes)) {
+					submitAll(jobs, pipeline, threads);
 				}
+			}
 
-				try (StreamReader packageStream = new FileStream(inputFile, "r"))  {
-					unpackStream(packageStream, checkFiles ? writtenFiles : null, projectProgress);
+			// Errors are reported by package priority and then in index order, no matter which thread found them
+			for (PackageJob job : jobs) {
+				if (job.exception != null) {
+					logger.severe("Error unpacking file: " + (job.file != null ? job.file.getAbsolutePath() : "input stream"));
+					logger.severe(job.exception.toString());
+					return job.exception;
 				}
-				catch (Exception e) {
-					logger.severe("Error unpacking file: " + inputFile.getAbsolutePath());
-					logger.severe(e.toString());
-					return e;
+				for (int i = 0; i < job.itemExceptions.length; i++) {
+					if (job.itemExceptions[i] != null) {
+						DBPFItem item = job.plan.getItem(i);
+						logger.warning("Error converting file: " + item.name + " - " + job.itemExceptions[i].toString());
+						exceptions.put(item, job.itemExceptions[i]);
+					}
+				}
+			}
+		}
+		finally {
+			for (PackageJob job : jobs) {
+				if (job.file != null) {
+					job.stream.close();
 				}
-				++i;
 			}
 		}
 
@@ -369,41 +488,59 @@ public class DBPFUnpackingTask {
 		return null;
 	}
 
-	private void incProgress(double increment) {
-		progress += increment;
-	}
-
-	private class FileConvertAction extends RecursiveAction {
-		final DBPFItem item;
-		final File folder;
-		final MemoryStream dataStream;
-		final double inc;
-		final CountDownLatch latch;
-		
-		FileConvertAction(DBPFItem item, File folder, MemoryStream dataStream, double inc, CountDownLatch latch) {
-			this.item = item;
-			this.folder = folder;
-			this.dataStream = dataStream;
-			this.inc = inc;
-			this.latch = latch;
+	/**
+	 * Submits the items of every package to the pipeline, reading several packages at the same time, and waits until all
+	 * of them have been written. The decompression and writer threads of the pipeline are shared by all the packages, so
+	 * they are kept busy until the last item, instead of waiting for each package to finish before starting the next one.
+	 * <p>
+	 * Reads are scheduled per package, not per item: a reader thread takes a whole package. This is enough because the
+	 * packages are memory-mapped, so reading an item only slices the mapped file, or queues a copy for the writer threads;
+	 * the page faults, decompression and writes all happen in the shared pools. When one big package is left at the end,
+	 * its single reader only queues work, and every decompression and writer thread still takes part in it.
+	 */
+	private void submitAll(List<PackageJob> jobs, DBPFUnpackingPipeline pipeline, int threads) throws InterruptedException {
+		int readers = Math.max(1, Math.min(threads, jobs.size()));
+		if (readers == 1) {
+			for (PackageJob job : jobs) {
+				submitPackageSafely(job, pipeline);
+			}
 		}
-
-		@Override public void compute() {
+		else {
+			// Readers take the next package as soon as they finish one; packages are started in order of priority
+			ExecutorService readerPool = Executors.newFixedThreadPool(readers, runnable -> {
+				Thread thread = new Thread(runnable, "dbpf-reader");
+				thread.setDaemon(true);
+				return thread;
+			});
 			try {
-				HashManager hasher = HashManager.get();
-				String name = hasher.getFileName(item.name.getInstanceID()) + "." + hasher.getTypeName(item.name.getTypeID());
-				logger.fine("Writing file: " + name);
-				dataStream.writeToFile(new File(folder, name));
-			}
-			catch (Exception e) {
-				logger.warning("Error converting file: " + item.name + " - " + e.toString());
-				exceptions.put(item, e);
+				for (PackageJob job : jobs) {
+					readerPool.execute(() -> submitPackageSafely(job, pipeline));
+				}
 			}
 			finally {
-				dataStream.close();
-				incProgress(inc);
-				latch.countDown();
+				readerPool.shutdown();
+				readerPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 			}
 		}
+		// Items that are still being written need the package streams
+		logger.fine("Waiting for all files to finish writing");
+		pipeline.awaitCompletion();
+	}
+
+	private void submitPackageSafely(PackageJob job, DBPFUnpackingPipeline pipeline) {
+		try {
+			submitPackage(job, pipeline);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			job.exception = e;
+		}
+		catch (Exception e) {
+			job.exception = e;
+		}
+	}
+
+	private synchronized void incProgress(double increment) {
+		progress += increment;
 	}
 }
@@ -19,6 +19,9 @@
 package sporemodder.file.dbpf;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import sporemodder.file.filestructures.StreamReader;
 import sporemodder.file.filestructures.StreamWriter;
@@ -46,6 +49,11 @@ public class DatabasePackedFile {
 	/** The amount of bytes used by the DBPFIndex. */
 	public long indexSize;
 	
+	/** Finds items by their key; it is built on the first lookup. */
+	private DBPFKeyTable keyTable;
+	/** The amount of items in the index when the key table was built. */
+	private int keyTableSize;
+	
 	private void readDBPF(StreamReader stream) throws IOException {
 		majorVersion = stream.readLEInt();
 		minVersion = stream.readLEInt();
@@ -81,10 +89,10 @@ public class DatabasePackedFile {
 		in.skip(20);
 		indexMajorVersion = in.readLEInt();
 		indexCount = in.readLEInt();
-		indexSize = in.readLEInt();
-		in.skip(8);
+		indexSize = in.readLELong();
+		in.skip(4);
 		indexMinorVersion = in.readLEInt();
-		indexOffset = in.readLEInt();
+		indexOffset = in.readLELong();
 	}
 	
 	private void writeDBBF(StreamWriter stream) throws IOException {
@@ -116,6 +124,17 @@ public class DatabasePackedFile {
 		}
 	}
 
+	public void writeHeader(StreamWriter stream) throws IOException {
+		if (isDBBF) {
+			stream.writeLEInt(TYPE_DBBF);
+			writeDBBF(stream);
+		}
+		else {
+			stream.writeLEInt(TYPE_DBPF);
+			writeDBPF(stream);
+		}
+	}
+
 	public void readIndex(StreamReader stream) throws IOException {
 		stream.seek(indexOffset);
 		index.read(stream);
@@ -137,13 +156,58 @@ public class DatabasePackedFile {
 		index.readItems(stream, indexCount, isDBBF);
 	}
 	
-	public DBPFItem getItem(ResourceKey key) {
-		for (DBPFItem item : index.items) {
-			if (item.name.equals(key)) {
-				return item;
+	/**
+	 * Returns the table used to find items by their key, building it if the items of the index have changed since it was built.
+	 * If a key is repeated, the table keeps its first item.
+	 */
+	private DBPFKeyTable getKeyTable() {
+		List<DBPFItem> items = index.items;
+		if (keyTable == null || keyTableSize != items.size()) {
+			keyTable = new DBPFKeyTable(items.size());
+			for (int i = 0; i < items.size(); i++) {
+				ResourceKey name = items.get(i).name;
+				keyTable.putIfAbsent(name.getGroupID(), name.getInstanceID(), name.getTypeID(), i);
 			}
+			keyTableSize = items.size();
+		}
+		return keyTable;
+	}
+	
+	/**
+	 * Makes the next lookup rebuild the table of keys. Lookups notice when items are added or removed, but this must be called
+	 * if the keys of existing items are modified or items are replaced.
+	 */
+	public void invalidateKeys() {
+		keyTable = null;
+	}
+	
+	/**
+	 * Returns the item with the given key, or null if there is none; if several items use the key, the first one is returned.
+	 * The first lookup builds a hash table of the keys, so later lookups take constant time.
+	 */
+	public DBPFItem getItem(ResourceKey key) {
+		int i = getKeyTable().get(key);
+		return i == DBPFKeyTable.NOT_FOUND ? null : index.items.get(i);
+	}
+	
+	/**
+	 * Returns whether the index contains an item with the given key.
+	 */
+	public boolean contains(ResourceKey key) {
+		return getKeyTable().get(key) != DBPFKeyTable.NOT_FOUND;
+	}
+	
+	/**
+	 * Returns the items with the given keys, in the same order as the keys; keys that are not in the index have a null item.
+	 */
+	public List<DBPFItem> getItems(Collection<ResourceKey> keys) {
+		DBPFKeyTable table = getKeyTable();
+		List<DBPFItem> result = new ArrayList<DBPFItem>(keys.size());
+		for (ResourceKey key : keys) {
+			int i = table.get(key);
+			result.add(i == DBPFKeyTable.NOT_FOUND ? null : index.items.get(i));
 		}
-		return null;
+		return result;
 	}
 	
 	public void print() {
@@ -19,6 +19,7 @@
 package sporemodder.file.dbpf;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import sporemodder.file.filestructures.StreamReader;
 
@@ -27,6 +28,16 @@ public class RefPackCompression {
 	public static class CompressorOutput {
 		byte[] data;
 		int lengthInBytes;
+		
+		/** Returns the array that contains the compressed data; only the first {@link #getLength()} bytes are used. */
+		public byte[] getData() {
+			return data;
+		}
+		
+		/** Returns the amount of bytes of compressed data. */
+		public int getLength() {
+			return lengthInBytes;
+		}
 	}
 	private static final int[] crctab = new int[] // size 256
 		{
@@ -86,70 +97,241 @@ public class RefPackCompression {
 		}
 	}
 	
+	/**
+	 * Returns the decompressed size stored in the header of the given compressed data, or -1 if it is not RefPack data.
+	 * @param src The array that contains the compressed data.
+	 * @param srcOff The position of the compressed data in the array.
+	 * @param srcLen The amount of bytes of compressed data available.
+	 */
+	public static int getDecompressedSize(byte[] src, int srcOff, int srcLen) {
+		if (srcLen < 5 || (src[srcOff] != 0x10 && src[srcOff] != 0x50)) {
+			return -1;
+		}
+		return (src[srcOff + 2] & 0xFF) << 16 | (src[srcOff + 3] & 0xFF) << 8 | (src[srcOff + 4] & 0xFF);
+	}
+	
+	/**
+	 * Returns the decompressed size stored in the header of the given compressed data, or -1 if it is not RefPack data.
+	 * The position of the buffer is not modified.
+	 * @param src The buffer that contains the compressed data, starting at its position.
+	 */
+	public static int getDecompressedSize(ByteBuffer src) {
+		int p = src.position();
+		if (src.remaining() < 5 || (src.get(p) != 0x10 && src.get(p) != 0x50)) {
+			return -1;
+		}
+		return (src.get(p + 2) & 0xFF) << 16 | (src.get(p + 3) & 0xFF) << 8 | (src.get(p + 4) & 0xFF);
+	}
+	
 	public static void decompressFast(byte[] in, byte[] out) throws IOException {
-		int pin = 0;
-//		int pout = 0;
-		byte cType = in[pin++];
-		pin++;
+		decompress(in, 0, in.length, out, 0);
+	}
+	
+	/**
+	 * Decompresses RefPack data from a region of an array into another array. This does not allocate any memory.
+	 * @param src The array that contains the compressed data.
+	 * @param srcOff The position of the compressed data in the source array.
+	 * @param srcLen The amount of bytes of compressed data.
+	 * @param dst The array where the decompressed data is written; it must have space for the decompressed size after dstOff.
+	 * @param dstOff The position in the destination array where the decompressed data starts.
+	 * @return The amount of bytes written into the destination array.
+	 * @throws IOException If the data is not RefPack compressed, or it is corrupt.
+	 */
+	public static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) throws IOException {
+		int decompSize = getDecompressedSize(src, srcOff, srcLen);
+		if (decompSize == -1) {
+			throw new IOException("Unknown compression type at position " + srcOff);
+		}
+		if (dst.length - dstOff < decompSize) {
+			throw new IOException("Destination is too small: " + decompSize + " bytes needed, " + (dst.length - dstOff) + " available");
+		}
 		
-		// 10FB & 1FFF
-		// We somehow extract the decompSize length from that operation
+		int pin = srcOff + 5;
+		int inEnd = srcOff + srcLen;
+		int pout = dstOff;
+		int outEnd = dstOff + decompSize;
 		
-		if (cType == 0x10 || cType == 0x50) {
-			int decompSize = (in[pin++] & 0xFF) << 16 | (in[pin++] & 0xFF) << 8 | (in[pin++] & 0xFF);//bb.getInt();
-			int size = 0;
-			
-			while(size < decompSize) {
-				int numPlainData = 0;
-				int numToCopy = 0;
-				int copyOffset = 0;
+		try {
+			while (pout < outEnd) {
+				int numPlainData;
+				int numToCopy;
+				int copyOffset;
 				
-				int controlChar = in[pin++] & 0xFF;
+				int controlChar = src[pin++] & 0xFF;
 				//Detects the control character
 				if (controlChar >= 252) {
 					numPlainData = controlChar & 0x03;
+					numToCopy = 0;
+					copyOffset = 0;
 				} else if (controlChar >= 224) {
 					numPlainData = ((controlChar & 0x1F) << 2 ) + 4;
+					numToCopy = 0;
+					copyOffset = 0;
 				} else if (controlChar >= 192) {
-					byte[] CCArray = {(byte)controlChar, in[pin++], in[pin++], in[pin++]};
-					numPlainData =  controlChar & 0x03;
-					numToCopy = ((controlChar & 0x0C) << 6 )  + Byte.toUnsignedInt(CCArray[3]) + 5;
-					copyOffset = ((controlChar & 0x10) << 12 ) + (Byte.toUnsignedInt(CCArray[1]) << 8 ) + Byte.toUnsignedInt(CCArray[2]) + 1;
+					int b1 = src[pin++] & 0xFF;
+					int b2 = src[pin++] & 0xFF;
+					int b3 = src[pin++] & 0xFF;
+					numPlainData = controlChar & 0x03;
+					numToCopy = ((controlChar & 0x0C) << 6 ) + b3 + 5;
+					copyOffset = ((controlChar & 0x10) << 12 ) + (b1 << 8) + b2 + 1;
 				} else if (controlChar >= 128) {
-					byte[] CCArray = {0, (byte)controlChar, in[pin++], in[pin++]};
-					numPlainData = ((Byte.toUnsignedInt(CCArray[2]) & 0xC0) >> 6) & 0x03;
+					int b1 = src[pin++] & 0xFF;
+					int b2 = src[pin++] & 0xFF;
+					numPlainData = (b1 >> 6) & 0x03;
 					numToCopy = (controlChar & 0x3F) + 4;
-					copyOffset = ((Byte.toUnsignedInt(CCArray[2]) & 0x3F) << 8) + Byte.toUnsignedInt(CCArray[3]) + 1;
+					copyOffset = ((b1 & 0x3F) << 8) + b2 + 1;
 				} else {
-					byte[] CCArray = {(byte)controlChar, in[pin++]};
+					int b1 = src[pin++] & 0xFF;
 					numPlainData = controlChar & 0x03;
 					numToCopy = ((controlChar & 0x1C) >> 2) + 3;
-					copyOffset = ((controlChar & 0x60) << 3) + Byte.toUnsignedInt(CCArray[1]) + 1;
+					copyOffset = ((controlChar & 0x60) << 3) + b1 + 1;
+				}
+				
+				if (pin + numPlainData > inEnd || pout + numPlainData + numToCopy > outEnd || pout + numPlainData - copyOffset < dstOff) {
+					throw new IOException("Corrupt compressed data at position " + (pin - srcOff));
 				}
 				
 				//Writes data
-				if(numPlainData > 0) {
-					System.arraycopy(in, pin, out, size, numPlainData);  // use pout instead of size ?
+				if (numPlainData > 0) {
+					System.arraycopy(src, pin, dst, pout, numPlainData);
 					pin += numPlainData;
-//					pout += numPlainData;
-					size += numPlainData;
+					pout += numPlainData;
 				}
 				
-				if (numToCopy > copyOffset) {
-					for (int c = 0; c < numToCopy; c++) {
-						out[size] = out[size - copyOffset];
-						size++;
-					}
+				if (numToCopy > 0) {
+					pout = copyBackReference(dst, pout, copyOffset, numToCopy);
+				}
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt compressed data: unexpected end of input", e);
+		}
+		
+		return decompSize;
+	}
+	
+	/**
+	 * Copies numToCopy bytes that start copyOffset bytes behind pout, and returns the new output position.
+	 * When the source and destination overlap, the repeated pattern is copied in chunks: every copy doubles the
+	 * amount of bytes that can be copied in the next one, so this needs very few calls to System.arraycopy.
+	 */
+	private static int copyBackReference(byte[] dst, int pout, int copyOffset, int numToCopy) {
+		int from = pout - copyOffset;
+		while (numToCopy > 0) {
+			int count = Math.min(numToCopy, pout - from);
+			System.arraycopy(dst, from, dst, pout, count);
+			pout += count;
+			numToCopy -= count;
+		}
+		return pout;
+	}
+	
+	/**
+	 * Decompresses RefPack data from one buffer into another. Both buffers can be heap, direct or memory-mapped buffers;
+	 * when both are backed by arrays, this is the same as {@link #decompress(byte[], int, int, byte[], int)}.
+	 * The compressed data is read from the position to the limit of the source buffer, and the decompressed data is
+	 * written at the position of the destination buffer. Afterwards, the position of the source buffer is its limit,
+	 * and the position of the destination buffer is moved past the written data. No memory is allocated for each decoded token.
+	 * @param src The buffer that contains the compressed data.
+	 * @param dst The buffer where the decompressed data is written.
+	 * @return The amount of bytes written into the destination buffer.
+	 * @throws IOException If the data is not RefPack compressed, or it is corrupt.
+	 */
+	public static int decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+		int decompSize = getDecompressedSize(src);
+		if (decompSize == -1) {
+			throw new IOException("Unknown compression type at position " + src.position());
+		}
+		// Checked before decoding, so nothing is ever written past the limit of the destination
+		if (dst.remaining() < decompSize) {
+			throw new IOException("Destination is too small: " + decompSize + " bytes needed, " + dst.remaining() + " available");
+		}
+		
+		if (src.hasArray() && dst.hasArray()) {
+			int written = decompress(src.array(), src.arrayOffset() + src.position(), src.remaining(), 
+					dst.array(), dst.arrayOffset() + dst.position());
+			src.position(src.limit());
+			dst.position(dst.position() + written);
+			return written;
+		}
+		
+		int srcStart = src.position();
+		int pin = srcStart + 5;
+		int inEnd = src.limit();
+		int dstStart = dst.position();
+		int pout = dstStart;
+		int outEnd = dstStart + decompSize;
+		
+		// Views used for bulk copies; they are created once per call, not once per token
+		ByteBuffer literalView = src.duplicate();
+		ByteBuffer copySource = dst.duplicate();
+		ByteBuffer copyTarget = dst.duplicate();
+		
+		try {
+			while (pout < outEnd) {
+				int numPlainData;
+				int numToCopy;
+				int copyOffset;
+				
+				int controlChar = src.get(pin++) & 0xFF;
+				if (controlChar >= 252) {
+					numPlainData = controlChar & 0x03;
+					numToCopy = 0;
+					copyOffset = 0;
+				} else if (controlChar >= 224) {
+					numPlainData = ((controlChar & 0x1F) << 2 ) + 4;
+					numToCopy = 0;
+					copyOffset = 0;
+				} else if (controlChar >= 192) {
+					int b1 = src.get(pin++) & 0xFF;
+					int b2 = src.get(pin++) & 0xFF;
+					int b3 = src.get(pin++) & 0xFF;
+					numPlainData = controlChar & 0x03;
+					numToCopy = ((controlChar & 0x0C) << 6 ) + b3 + 5;
+					copyOffset = ((controlChar & 0x10) << 12 ) + (b1 << 8) + b2 + 1;
+				} else if (controlChar >= 128) {
+					int b1 = src.get(pin++) & 0xFF;
+					int b2 = src.get(pin++) & 0xFF;
+					numPlainData = (b1 >> 6) & 0x03;
+					numToCopy = (controlChar & 0x3F) + 4;
+					copyOffset = ((b1 & 0x3F) << 8) + b2 + 1;
 				} else {
-					
-					System.arraycopy(out, size - copyOffset, out, size, numToCopy);
-					size += numToCopy;
+					int b1 = src.get(pin++) & 0xFF;
+					numPlainData = controlChar & 0x03;
+					numToCopy = ((controlChar & 0x1C) >> 2) + 3;
+					copyOffset = ((controlChar & 0x60) << 3) + b1 + 1;
+				}
+				
+				if (pin + numPlainData > inEnd || pout + numPlainData + numToCopy > outEnd || pout + numPlainData - copyOffset < dstStart) {
+					throw new IOException("Corrupt compressed data at position " + (pin - srcStart));
 				}
 				
+				if (numPlainData > 0) {
+					literalView.limit(pin + numPlainData).position(pin);
+					copyTarget.position(pout);
+					copyTarget.put(literalView);
+					pin += numPlainData;
+					pout += numPlainData;
+				}
+				
+				int from = pout - copyOffset;
+				while (numToCopy > 0) {
+					int count = Math.min(numToCopy, pout - from);
+					copySource.limit(from + count).position(from);
+					copyTarget.position(pout);
+					copyTarget.put(copySource);
+					pout += count;
+					numToCopy -= count;
+				}
 			}
-		} else {
-			throw new IOException("Unknown compression type at position " + pin);
 		}
+		catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt compressed data: unexpected end of input", e);
+		}
+		
+		src.position(inEnd);
+		dst.position(outEnd);
+		return decompSize;
 	}
 	
 	public static void compress(byte[] input, int inputLength, CompressorOutput out) throws IOException {
@@ -0,0 +1,216 @@
+/****************************************************************************
+* Copyright (C) 2019 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+package sporemodder.file.dbpf;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that decompresses RefPack data as it is read. Back-references in RefPack data never reach further
+ * than {@link #WINDOW_SIZE} bytes, so only that many decompressed bytes are kept in memory, no matter how big the
+ * decompressed data is. The compressed data is read from another input stream, which is closed when this stream is closed.
+ */
+public class RefPackInputStream extends InputStream {
+
+	/** The amount of decompressed bytes kept to resolve back-references; this is the maximum offset a back-reference can use. */
+	public static final int WINDOW_SIZE = 1 << 17;
+	private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+	private final InputStream in;
+	private final int decompressedSize;
+
+	/** The last decompressed bytes, indexed by their position modulo the window size. */
+	private final byte[] window = new byte[WINDOW_SIZE];
+	/** How many bytes have been decompressed so far. */
+	private int position;
+
+	/** Bytes of the current token that have not been returned yet. */
+	private int pendingLiterals;
+	private int pendingCopies;
+	private int copyOffset;
+
+	/** Used by {@link #read()}, so that reading one byte at a time does not allocate anything. */
+	private final byte[] singleByte = new byte[1];
+
+	/**
+	 * Creates a stream that decompresses the RefPack data read from the given stream. The header of the compressed data
+	 * is read immediately.
+	 * @param in The stream that contains the compressed data, starting at its header.
+	 * @throws IOException If the data is not RefPack compressed.
+	 */
+	public RefPackInputStream(InputStream in) throws IOException {
+		this.in = in;
+
+		byte[] header = new byte[5];
+		readFully(header, 0, header.length);
+		decompressedSize = RefPackCompression.getDecompressedSize(header, 0, header.length);
+		if (decompressedSize == -1) {
+			throw new IOException("Unknown compression type: " + (header[0] & 0xFF));
+		}
+	}
+
+	/** Returns the total amount of bytes that this stream returns, as stored in the header of the compressed data. */
+	public int getDecompressedSize() {
+		return decompressedSize;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (position == decompressedSize) {
+			return -1;
+		}
+
+		int read = 0;
+		while (read < len && position < decompressedSize) {
+			if (pendingLiterals == 0 && pendingCopies == 0) {
+				readToken();
+			}
+
+			if (pendingLiterals > 0) {
+				int count = Math.min(pendingLiterals, len - read);
+				readFully(b, off + read, count);
+				toWindow(b, off + read, count);
+				pendingLiterals -= count;
+				read += count;
+			}
+			else if (pendingCopies > 0) {
+				int count = Math.min(pendingCopies, len - read);
+				copyBackReference(b, off + read, count);
+				pendingCopies -= count;
+				read += count;
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public int available() {
+		return pendingLiterals == 0 ? pendingCopies : pendingLiterals;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/** Reads the next control token, which tells how many literal bytes follow and which bytes are copied after them. */
+	private void readToken() throws IOException {
+		int controlChar = readByte();
+		int numPlainData;
+		int numToCopy;
+		int offset;
+
+		if (controlChar >= 252) {
+			numPlainData = controlChar & 0x03;
+			numToCopy = 0;
+			offset = 0;
+		} else if (controlChar >= 224) {
+			numPlainData = ((controlChar & 0x1F) << 2 ) + 4;
+			numToCopy = 0;
+			offset = 0;
+		} else if (controlChar >= 192) {
+			int b1 = readByte();
+			int b2 = readByte();
+			int b3 = readByte();
+			numPlainData = controlChar & 0x03;
+			numToCopy = ((controlChar & 0x0C) << 6 ) + b3 + 5;
+			offset = ((controlChar & 0x10) << 12 ) + (b1 << 8) + b2 + 1;
+		} else if (controlChar >= 128) {
+			int b1 = readByte();
+			int b2 = readByte();
+			numPlainData = (b1 >> 6) & 0x03;
+			numToCopy = (controlChar & 0x3F) + 4;
+			offset = ((b1 & 0x3F) << 8) + b2 + 1;
+		} else {
+			int b1 = readByte();
+			numPlainData = controlChar & 0x03;
+			numToCopy = ((controlChar & 0x1C) >> 2) + 3;
+			offset = ((controlChar & 0x60) << 3) + b1 + 1;
+		}
+
+		if ((long) position + numPlainData + numToCopy > decompressedSize
+				|| (numToCopy > 0 && position + numPlainData - offset < 0)) {
+			throw new IOException("Corrupt compressed data at decompressed position " + position);
+		}
+
+		pendingLiterals = numPlainData;
+		pendingCopies = numToCopy;
+		copyOffset = offset;
+	}
+
+	/** Adds the given decompressed bytes to the window. */
+	private void toWindow(byte[] b, int off, int count) {
+		while (count > 0) {
+			int index = position & WINDOW_MASK;
+			int chunk = Math.min(count, WINDOW_SIZE - index);
+			System.arraycopy(b, off, window, index, chunk);
+			off += chunk;
+			count -= chunk;
+			position += chunk;
+		}
+	}
+
+	/**
+	 * Copies bytes from copyOffset bytes behind the current position, both into the window and into the given array.
+	 * Every chunk is at most copyOffset bytes long, so the bytes it copies have already been decompressed.
+	 */
+	private void copyBackReference(byte[] b, int off, int count) {
+		while (count > 0) {
+			int from = (position - copyOffset) & WINDOW_MASK;
+			int to = position & WINDOW_MASK;
+			int chunk = Math.min(Math.min(count, copyOffset), Math.min(WINDOW_SIZE - from, WINDOW_SIZE - to));
+			System.arraycopy(window, from, window, to, chunk);
+			System.arraycopy(window, to, b, off, chunk);
+			off += chunk;
+			count -= chunk;
+			position += chunk;
+		}
+	}
+
+	private int readByte() throws IOException {
+		int value = in.read();
+		if (value == -1) {
+			throw new EOFException("Unexpected end of compressed data at decompressed position " + position);
+		}
+		return value;
+	}
+
+	private void readFully(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int count = in.read(b, off, len);
+			if (count == -1) {
+				throw new EOFException("Unexpected end of compressed data at decompressed position " + position);
+			}
+			off += count;
+			len -= count;
+		}
+	}
+}
@@ -222,6 +222,10 @@ public class FileStream implements ReadWriteStream {
 		ram.read(arr);
 	}
 	@Override
+	public void read(byte[] arr, int off, int len) throws IOException {
+		ram.readFully(arr, off, len);
+	}
+	@Override
 	public String readLine() throws IOException {
 		return ram.readLine();
 	}
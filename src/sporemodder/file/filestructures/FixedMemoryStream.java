@@ -78,6 +78,12 @@ public class FixedMemoryStream implements ReadWriteStream {
 		filePointer += arr.length;
 	}
 	
+	@Override
+	public void read(byte[] arr, int off, int len) throws IOException {
+		System.arraycopy(data, filePointer, arr, off, len);
+		filePointer += len;
+	}
+	
 	@Override
 	@Deprecated
 	public String readLine() throws IOException {
@@ -0,0 +1,467 @@
+package sporemodder.file.filestructures;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only stream that maps the whole file into memory using {@link FileChannel#map}. Reading from it does not
+ * require any system call, and {@link #slice(long, int)} gives direct access to the file data without copying it.
+ * <p>
+ * Since a single mapped buffer cannot be bigger than 2 GB, big files are mapped in several regions. Consecutive regions
+ * overlap, so any read smaller than the overlap never has to cross a region boundary.
+ */
+public class MappedFileStream implements StreamReader {
+
+	/** The distance between the start of two consecutive mapped regions. */
+	private static final long REGION_SIZE = 1L << 30;
+	/** How many extra bytes each region maps after the start of the next one. */
+	private static final long REGION_OVERLAP = 1L << 26;
+
+	private FileChannel channel;
+	private MappedByteBuffer[] regions;
+	private final long length;
+	private long filePointer;
+	private long baseOffset;
+
+	public MappedFileStream(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			length = channel.size();
+
+			int regionCount = length <= Integer.MAX_VALUE ? 1 : (int) ((length + REGION_SIZE - 1) / REGION_SIZE);
+			regions = new MappedByteBuffer[regionCount];
+
+			if (regionCount == 1) {
+				regions[0] = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			}
+			else {
+				for (int i = 0; i < regionCount; i++) {
+					long start = i * REGION_SIZE;
+					regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE + REGION_OVERLAP, length - start));
+				}
+			}
+		}
+		catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/** Returns the region that contains the given absolute position. */
+	private MappedByteBuffer region(long pos) {
+		return regions.length == 1 ? regions[0] : regions[(int) (pos / REGION_SIZE)];
+	}
+
+	/** Returns the index inside its region of the given absolute position. */
+	private int regionOffset(long pos) {
+		return regions.length == 1 ? (int) pos : (int) (pos % REGION_SIZE);
+	}
+
+	/** Ensures 'count' bytes can be read from the file pointer, and returns the file pointer before moving it 'count' positions forward. */
+	private long advance(int count) throws IOException {
+		if (filePointer < 0 || filePointer + count > length) {
+			throw new IOException("Attempted to read " + count + " bytes at position " + filePointer + ", past the end of the file (" + length + " bytes)");
+		}
+		long pos = filePointer;
+		filePointer += count;
+		return pos;
+	}
+
+	/** Whether 'count' bytes starting at the given absolute position are inside a single region. */
+	private boolean fitsInRegion(long pos, int count) {
+		return regions.length == 1 || regionOffset(pos) + count <= region(pos).capacity();
+	}
+
+	/** Copies 'len' bytes from the given absolute position; this works even if the bytes span several regions. */
+	private void copy(long pos, byte[] dst, int off, int len) {
+		while (len > 0) {
+			ByteBuffer buffer = region(pos).duplicate();
+			int index = regionOffset(pos);
+			int count = Math.min(len, buffer.capacity() - index);
+			buffer.position(index);
+			buffer.get(dst, off, count);
+			pos += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/** Reads 'count' bytes in big-endian order from the given absolute position; this works even if the bytes span several regions. */
+	private long readBigEndian(long pos, int count) {
+		long result = 0;
+		for (int i = 0; i < count; i++) {
+			result = (result << 8) | (region(pos + i).get(regionOffset(pos + i)) & 0xFF);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a read-only buffer that shares its content with the mapped file, starting at the given offset (relative
+	 * to the base offset) and with the specified amount of bytes. The file pointer is not modified.
+	 * If the data spans more than one mapped region, it is copied into a heap buffer instead.
+	 * @param offset The position of the first byte, relative to the base offset.
+	 * @param size The amount of bytes in the returned buffer.
+	 */
+	public ByteBuffer slice(long offset, int size) throws IOException {
+		long pos = offset + baseOffset;
+		if (pos < 0 || size < 0 || pos + size > length) {
+			throw new IOException("Attempted to slice " + size + " bytes at position " + pos + ", past the end of the file (" + length + " bytes)");
+		}
+		if (fitsInRegion(pos, size)) {
+			ByteBuffer buffer = region(pos).duplicate();
+			int index = regionOffset(pos);
+			buffer.position(index);
+			buffer.limit(index + size);
+			return buffer.slice().asReadOnlyBuffer();
+		}
+		else {
+			byte[] arr = new byte[size];
+			copy(pos, arr, 0, size);
+			return ByteBuffer.wrap(arr).asReadOnlyBuffer();
+		}
+	}
+
+	public FileChannel getChannel() {
+		return channel;
+	}
+
+
+	@Override
+	public void seek(long off) throws IOException {
+		filePointer = off + baseOffset;
+	}
+
+	@Override
+	public void seekAbs(long off) throws IOException {
+		filePointer = off;
+	}
+
+	@Override
+	public void skip(int n) throws IOException {
+		filePointer += n;
+	}
+
+	/**
+	 * Closes the underlying channel. The mapped memory is released once the buffers are garbage collected.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (channel != null) channel.close();
+		channel = null;
+		regions = null;
+	}
+
+	@Override
+	public long length() throws IOException {
+		return length;
+	}
+
+	@Override
+	public void setLength(long n) throws IOException {
+		throw new UnsupportedOperationException("MappedFileStream is read-only");
+	}
+
+	@Override
+	public long getFilePointer() throws IOException {
+		return filePointer - baseOffset;
+	}
+
+	@Override
+	public long getFilePointerAbs() throws IOException {
+		return filePointer;
+	}
+
+	@Override
+	public void setBaseOffset(long val) throws IOException {
+		baseOffset = val;
+	}
+
+	@Override
+	public long getBaseOffset() throws IOException {
+		return baseOffset;
+	}
+
+	@Override
+	public byte[] toByteArray() throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("File is too big to be stored in a byte array");
+		}
+		byte[] array = new byte[(int) length];
+		copy(0, array, 0, array.length);
+		return array;
+	}
+
+	@Override
+	public void read(byte[] dst) throws IOException {
+		long pos = advance(dst.length);
+		copy(pos, dst, 0, dst.length);
+	}
+
+	@Override
+	public void read(byte[] dst, int off, int len) throws IOException {
+		long pos = advance(len);
+		copy(pos, dst, off, len);
+	}
+
+	@Override
+	public String readCString(StringEncoding encoding) throws IOException {
+		int charSize = encoding == StringEncoding.ASCII ? 1 : 2;
+		long start = filePointer;
+		long end = start;
+
+		while (true) {
+			if (end + charSize > length) {
+				throw new IOException("Unterminated string at position " + start);
+			}
+			boolean isZero = true;
+			for (int i = 0; i < charSize; i++) {
+				if (region(end + i).get(regionOffset(end + i)) != 0) {
+					isZero = false;
+				}
+			}
+			if (isZero) break;
+			end += charSize;
+		}
+
+		byte[] arr = new byte[(int) (end - start)];
+		copy(start, arr, 0, arr.length);
+		filePointer = end + charSize;
+
+		return new String(arr, encoding.getCharset());
+	}
+
+	@Override
+	public String readString(StringEncoding encoding, int length) throws IOException {
+		byte[] arr = new byte[encoding == StringEncoding.ASCII ? length : length*2];
+		read(arr);
+		return new String(arr, encoding.getCharset());
+	}
+
+	@Override
+	public String readLine() throws IOException {
+		if (filePointer >= length) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder();
+		while (filePointer < length) {
+			char c = (char) (readByte() & 0xFF);
+			if (c == '\n') {
+				break;
+			}
+			else if (c == '\r') {
+				if (filePointer < length && region(filePointer).get(regionOffset(filePointer)) == '\n') {
+					filePointer++;
+				}
+				break;
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+
+	@Override
+	public boolean readBoolean() throws IOException {
+		return readByte() != 0;
+	}
+
+	@Override
+	public byte readByte() throws IOException {
+		long pos = advance(1);
+		return region(pos).get(regionOffset(pos));
+	}
+	@Override
+	public short readUByte() throws IOException {
+		return (short) (readByte() & 0xFF);
+	}
+
+	@Override
+	public char readChar() throws IOException {
+		return (char) readShort();
+	}
+
+	@Override
+	public short readShort() throws IOException {
+		long pos = advance(2);
+		if (fitsInRegion(pos, 2)) {
+			return region(pos).getShort(regionOffset(pos));
+		}
+		return (short) readBigEndian(pos, 2);
+	}
+	@Override
+	public short readLEShort() throws IOException {
+		return Short.reverseBytes(readShort());
+	}
+	@Override
+	public int readUShort() throws IOException {
+		return readShort() & 0xFFFF;
+	}
+	@Override
+	public int readLEUShort() throws IOException {
+		return readLEShort() & 0xFFFF;
+	}
+
+	@Override
+	public int readInt() throws IOException {
+		long pos = advance(4);
+		if (fitsInRegion(pos, 4)) {
+			return region(pos).getInt(regionOffset(pos));
+		}
+		return (int) readBigEndian(pos, 4);
+	}
+	@Override
+	public int readLEInt() throws IOException {
+		return Integer.reverseBytes(readInt());
+	}
+	@Override
+	public long readUInt() throws IOException {
+		return readInt() & 0xFFFFFFFFL;
+	}
+	@Override
+	public long readLEUInt() throws IOException {
+		return readLEInt() & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public long readLong() throws IOException {
+		long pos = advance(8);
+		if (fitsInRegion(pos, 8)) {
+			return region(pos).getLong(regionOffset(pos));
+		}
+		return readBigEndian(pos, 8);
+	}
+	@Override
+	public long readLELong() throws IOException {
+		return Long.reverseBytes(readLong());
+	}
+
+	@Override
+	public float readFloat() throws IOException {
+		return Float.intBitsToFloat(readInt());
+	}
+	@Override
+	public float readLEFloat() throws IOException {
+		return Float.intBitsToFloat(readLEInt());
+	}
+
+	@Override
+	public double readDouble() throws IOException {
+		return Double.longBitsToDouble(readLong());
+	}
+	@Override
+	public double readLEDouble() throws IOException {
+		return Double.longBitsToDouble(readLELong());
+	}
+
+
+	@Override
+	public void readBooleans(boolean[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readBoolean();
+		}
+	}
+	@Override
+	public void readBytes(byte[] dst) throws IOException {
+		read(dst);
+	}
+	@Override
+	public void readUBytes(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readUByte();
+		}
+	}
+	@Override
+	public void readChars(char[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readChar();
+		}
+	}
+	@Override
+	public void readShorts(short[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readShort();
+		}
+	}
+	@Override
+	public void readLEShorts(short[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEShort();
+		}
+	}
+	@Override
+	public void readUShorts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readUShort();
+		}
+	}
+	@Override
+	public void readLEUShorts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEUShort();
+		}
+	}
+	@Override
+	public void readInts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readInt();
+		}
+	}
+	@Override
+	public void readLEInts(int[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEInt();
+		}
+	}
+	@Override
+	public void readUInts(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readUInt();
+		}
+	}
+	@Override
+	public void readLEUInts(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEUInt();
+		}
+	}
+	@Override
+	public void readLongs(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLong();
+		}
+	}
+	@Override
+	public void readLELongs(long[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLELong();
+		}
+	}
+	@Override
+	public void readFloats(float[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readFloat();
+		}
+	}
+	@Override
+	public void readLEFloats(float[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEFloat();
+		}
+	}
+	@Override
+	public void readDoubles(double[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readDouble();
+		}
+	}
+	@Override
+	public void readLEDoubles(double[] dst) throws IOException {
+		for (int i = 0; i < dst.length; i++) {
+			dst[i] = readLEDouble();
+		}
+	}
+}
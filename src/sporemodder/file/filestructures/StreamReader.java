@@ -14,6 +14,11 @@ public interface StreamReader extends Stream {
 	 */
 	public void read(byte[] dst) throws IOException;
 	
+	/**
+	 * Reads len bytes into the provided destination array starting at position off, and moves the file pointer len positions forward.
+	 */
+	public void read(byte[] dst, int off, int len) throws IOException;
+	
 	/** Reads a string with the provided encoding, until a 00 character is found. */
 	public String readCString(StringEncoding encoding) throws IOException;
 	/** Reads a string of the given length with the provided encoding. When a 00 character is found,
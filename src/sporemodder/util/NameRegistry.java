@@ -21,11 +21,12 @@ package sporemodder.util;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
 
 import sporemodder.file.filestructures.Stream.StringEncoding;
 import sporemodder.file.filestructures.StreamWriter;
@@ -33,19 +34,58 @@ import sporemodder.HashManager;
 
 /**
  * A registry file is a list which assigns an integer hash value to a string, and vice versa.
+ * <p>
+ * Registries can have more than 100000 entries, so they are not kept in maps: the strings are packed in a {@link StringArena},
+ * and the tables that assign them to hashes and the other way around only store integers. Looking up a name does not allocate
+ * anything once the name has been used.
+ * <p>
+ * A registry can be given a {@link Loader} so that it is only read the first time it is used; this way, programs do not pay
+ * for the registries they never use.
  */
 public class NameRegistry {
+	
+	/** Reads the entries of a registry; see {@link NameRegistry#setLoader(Loader)}. */
+	@FunctionalInterface
+	public static interface Loader {
+		/**
+		 * Adds the entries to the registry, using methods like {@link NameRegistry#read(File)} or {@link NameRegistry#setSnapshot(NameRegistrySnapshot)}.
+		 * If this throws an exception, the registry is still not loaded, and it will try again the next time it is used.
+		 */
+		public void load(NameRegistry registry) throws Exception;
+	}
+	
+	/** The strings of the names and the keys of this registry. */
+	private final StringArena arena = new StringArena();
+	
+	/** The hash to name table, with open addressing: a slot is empty if its string is -1. */
+	private int[] nameHashes;
+	private int[] nameStrings;
+	private int nameCount;
+	
 	// ~ names are in lowercase
-	protected final HashMap<String, Integer> hashes = new HashMap<String, Integer>();
-	protected final HashMap<Integer, String> names = new HashMap<Integer, String>();
+	/** The name to hash table, with open addressing: a slot is empty if its string is -1. */
+	private int[] keyStrings;
+	private int[] keyHashCodes;
+	private int[] keyValues;
+	private int keyCount;
+	
 	protected HashManager hashManager;
 	protected final String fileName;
 	protected final String name;
+	/** The entries read from a snapshot, if any; the entries in the tables are newer and take priority. */
+	protected NameRegistrySnapshot snapshot;
+	
+	/** Reads the entries the first time the registry is used; it is null once it has been used. */
+	private Loader loader;
+	/** Whether the registry can be used; it is only false while there is a loader that has not finished. */
+	private volatile boolean isLoaded = true;
+	private boolean isLoading;
 	
 	public NameRegistry(HashManager hashManager, String name, String fileName) {
 		this.hashManager = hashManager;
 		this.name = name;
 		this.fileName = fileName;
+		clearTables();
 	}
 	
 	public String getDescription() {
@@ -57,8 +97,174 @@ public class NameRegistry {
 	}
 	
 	public void clear() {
-		hashes.clear();
-		names.clear();
+		arena.clear();
+		clearTables();
+		snapshot = null;
+	}
+	
+	private void clearTables() {
+		nameHashes = new int[16];
+		nameStrings = new int[16];
+		Arrays.fill(nameStrings, -1);
+		nameCount = 0;
+		
+		keyStrings = new int[16];
+		keyHashCodes = new int[16];
+		keyValues = new int[16];
+		Arrays.fill(keyStrings, -1);
+		keyCount = 0;
+	}
+	
+	/**
+	 * Sets a loader that reads the entries of this registry the first time it is used, instead of reading them now.
+	 * The registry is loaded only once, even if it is used by several threads at the same time.
+	 */
+	public synchronized void setLoader(Loader loader) {
+		this.loader = loader;
+		isLoaded = loader == null;
+	}
+	
+	/** Tells whether the entries of this registry have been read, or it has no loader. */
+	public boolean isLoaded() {
+		return isLoaded;
+	}
+	
+	/** Reads the entries with the loader if they have not been read yet. */
+	private void ensureLoaded() {
+		if (!isLoaded) {
+			load();
+		}
+	}
+	
+	private synchronized void load() {
+		// The loader itself adds the entries with the public methods, which must not wait for it
+		if (isLoaded || isLoading) {
+			return;
+		}
+		isLoading = true;
+		try {
+			// Anything left by a previous attempt that failed is discarded
+			clear();
+			loader.load(this);
+			loader = null;
+			isLoaded = true;
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new RuntimeException("Could not read the registry " + fileName + ": " + e.getMessage(), e);
+		}
+		finally {
+			isLoading = false;
+		}
+	}
+	
+	/**
+	 * Uses the entries of a snapshot, replacing all the entries of this registry. Entries added or read afterwards
+	 * replace the ones in the snapshot.
+	 */
+	public void setSnapshot(NameRegistrySnapshot snapshot) {
+		clear();
+		this.snapshot = snapshot;
+	}
+	
+	/** Spreads the bits of a hash, so that similar hashes do not end in neighbouring slots. */
+	private static int mix(int hash) {
+		hash *= 0x9E3779B9;
+		return hash ^ (hash >>> 16);
+	}
+	
+	/** Returns the slot of the given hash in the name table, or the empty slot where it would be added. */
+	private int findNameSlot(int hash) {
+		int mask = nameHashes.length - 1;
+		int slot = mix(hash) & mask;
+		while (nameStrings[slot] != -1 && nameHashes[slot] != hash) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/** Returns the slot of the given key in the key table, or the empty slot where it would be added. */
+	private int findKeySlot(String key, int hashCode) {
+		int mask = keyStrings.length - 1;
+		int slot = mix(hashCode) & mask;
+		int index;
+		while ((index = keyStrings[slot]) != -1 && (keyHashCodes[slot] != hashCode || !arena.equals(index, key))) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/** Assigns the string with the given index to a hash, replacing the name it had. */
+	private void putName(int hash, int string) {
+		int slot = findNameSlot(hash);
+		if (nameStrings[slot] == -1) {
+			if (2 * (nameCount + 1) > nameHashes.length) {
+				growNames();
+				slot = findNameSlot(hash);
+			}
+			nameCount++;
+		}
+		nameHashes[slot] = hash;
+		nameStrings[slot] = string;
+	}
+	
+	/**
+	 * Assigns a hash to a key, replacing the hash it had.
+	 * @param string The index of the key in the arena, or -1 to add it if the key is new.
+	 */
+	private void putKey(String key, int string, int hash) {
+		int hashCode = key.hashCode();
+		int slot = findKeySlot(key, hashCode);
+		if (keyStrings[slot] == -1) {
+			if (2 * (keyCount + 1) > keyStrings.length) {
+				growKeys();
+				slot = findKeySlot(key, hashCode);
+			}
+			keyStrings[slot] = string == -1 ? arena.add(key) : string;
+			keyHashCodes[slot] = hashCode;
+			keyCount++;
+		}
+		keyValues[slot] = hash;
+	}
+	
+	private void growNames() {
+		int[] oldHashes = nameHashes;
+		int[] oldStrings = nameStrings;
+		nameHashes = new int[oldHashes.length * 2];
+		nameStrings = new int[oldHashes.length * 2];
+		Arrays.fill(nameStrings, -1);
+		for (int i = 0; i < oldHashes.length; i++) {
+			if (oldStrings[i] != -1) {
+				int slot = findNameSlot(oldHashes[i]);
+				nameHashes[slot] = oldHashes[i];
+				nameStrings[slot] = oldStrings[i];
+			}
+		}
+	}
+	
+	private void growKeys() {
+		int[] oldStrings = keyStrings;
+		int[] oldHashCodes = keyHashCodes;
+		int[] oldValues = keyValues;
+		keyStrings = new int[oldStrings.length * 2];
+		keyHashCodes = new int[oldStrings.length * 2];
+		keyValues = new int[oldStrings.length * 2];
+		Arrays.fill(keyStrings, -1);
+		int mask = keyStrings.length - 1;
+		for (int i = 0; i < oldStrings.length; i++) {
+			if (oldStrings[i] != -1) {
+				// Keys are unique, so there is no need to compare them
+				int slot = mix(oldHashCodes[i]) & mask;
+				while (keyStrings[slot] != -1) {
+					slot = (slot + 1) & mask;
+				}
+				keyStrings[slot] = oldStrings[i];
+				keyHashCodes[slot] = oldHashCodes[i];
+				keyValues[slot] = oldValues[i];
+			}
+		}
 	}
 	
 	/**
@@ -67,7 +273,12 @@ public class NameRegistry {
 	 * @return The equivalent name, or null.
 	 */
 	public String getName(int hash) {
-		return names.get(hash);
+		ensureLoaded();
+		int string = nameStrings[findNameSlot(hash)];
+		if (string != -1) {
+			return arena.get(string);
+		}
+		return snapshot == null ? null : snapshot.getName(hash);
 	}
 	
 	/**
@@ -77,7 +288,12 @@ public class NameRegistry {
 	 * @return The equivalent hash, or null.
 	 */
 	public Integer getHash(String name) {
-		return hashes.get(name);
+		ensureLoaded();
+		int slot = findKeySlot(name, name.hashCode());
+		if (keyStrings[slot] != -1) {
+			return keyValues[slot];
+		}
+		return snapshot == null ? null : snapshot.getHash(name);
 	}
 	
 	/**
@@ -86,8 +302,11 @@ public class NameRegistry {
 	 * @param hash
 	 */
 	public void add(String name, int hash) {
-		hashes.put(name.toLowerCase(), hash);
-		names.put(hash, name);
+		ensureLoaded();
+		int string = arena.add(name);
+		String key = name.toLowerCase();
+		putKey(key, key.equals(name) ? string : -1, hash);
+		putName(hash, string);
 	}
 	
 	/**
@@ -98,70 +317,144 @@ public class NameRegistry {
 		// There are 1 or 2 strings: the name and, optionally, the hash.
 		String[] strings = str.split("\t");
 		String name = strings[0].trim();
+		int string = arena.add(name);
 		
 		if (strings.length < 2) {
 			int hash = hashManager.fnvHash(name);
-			names.put(hash, name);
+			putName(hash, string);
 		} 
 		else {
 			// Remove any trailing whitespaces
 			String hashStr = strings[1].trim();
-			int hash = hashManager.int32(hashStr);
-			
-			if (name.endsWith("~")) {
-				hashes.put(name.toLowerCase(), hash);
-			}
-			else {
-				hashes.put(name, hash);
-			}
-			hashes.put(name, hash);
-			names.put(hash, name);
+			addEntry(name, string, hashManager.int32(hashStr));
 		}
 	}
 	
-	public void read(File file) throws IOException {
-		try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-			read(in);
+	/** Adds an entry that has an explicit hash, like <code>name	0x12345678</code>; the name is already in the arena. */
+	void addEntry(String name, int string, int hash) {
+		if (name.endsWith("~")) {
+			String key = name.toLowerCase();
+			putKey(key, key.equals(name) ? string : -1, hash);
+		}
+		putKey(name, string, hash);
+		putName(hash, string);
+	}
+	
+	/** Adds an entry that only has a name, so its hash is the hash of the name; the name is already in the arena. */
+	void addEntry(int string, int hash) {
+		putName(hash, string);
+	}
+	
+	/** Makes room for the given number of names, and the given number of bytes of text, so the tables are not grown while adding them. */
+	void ensureCapacity(int names, int textSize) {
+		while (2 * (nameCount + names) > nameHashes.length) {
+			growNames();
+		}
+		arena.ensureCapacity(names, textSize);
+	}
+	
+	/** Adds an ASCII string to the arena, taking it from the given bytes, and returns its index. */
+	int addString(byte[] bytes, int offset, int length) {
+		return arena.add(bytes, offset, length);
+	}
+	
+	/** Processes a line of a registry file, ignoring comments and empty lines. */
+	void parseLine(String line) {
+		String str = line.split("//")[0].trim();
+		
+		if (str.length() == 0) return;
+		
+		// Ignore
+		if (str.startsWith("#")) {
+			return;
 		}
+		else {
+			parseEntry(str);
+		}
+	}
+	
+	/**
+	 * Reads a registry file, which is always read as UTF-8 text. The file is parsed by several threads at the same time,
+	 * see {@link RegistryFileParser}.
+	 */
+	public void read(File file) throws IOException {
+		ensureLoaded();
+		RegistryFileParser.read(this, file);
+		arena.trimToSize();
 	}
 	
 	public void read(BufferedReader in) throws IOException {
+		ensureLoaded();
 		String line;
 
 		while ((line = in.readLine()) != null) {
-			
-			String str = line.split("//")[0].trim();
-			
-			if (str.length() == 0) continue;
-			
-			// Ignore
-			if (str.startsWith("#")) {
-				continue;
-			}
-			else {
-				parseEntry(str);
-			}
+			parseLine(line);
 		}
+		arena.trimToSize();
 	}
 	
 	public void write(StreamWriter stream) throws IOException {
+		ensureLoaded();
 		String eol = System.getProperty("line.separator");
 		
-		for (Map.Entry<Integer, String> entry : names.entrySet()) {
-			String name = entry.getValue();
-			if (name.endsWith("~") || hashManager.fnvHash(name) != entry.getKey()) {
-				stream.writeString(name + "\t0x" + Integer.toHexString(entry.getKey()) + eol, StringEncoding.ASCII);
-			} else {
-				stream.writeString(name + eol, StringEncoding.ASCII);
+		if (snapshot != null) {
+			for (int i = 0; i < snapshot.getNameCount(); i++) {
+				if (nameStrings[findNameSlot(snapshot.getNameHash(i))] == -1) {
+					writeEntry(stream, snapshot.getNameAt(i), snapshot.getNameHash(i), eol);
+				}
+			}
+		}
+		for (int i = 0; i < nameStrings.length; i++) {
+			if (nameStrings[i] != -1) {
+				writeEntry(stream, arena.decode(nameStrings[i]), nameHashes[i], eol);
+			}
+		}
+	}
+	
+	private void writeEntry(StreamWriter stream, String name, int hash, String eol) throws IOException {
+		if (name.endsWith("~") || hashManager.fnvHash(name) != hash) {
+			stream.writeString(name + "\t0x" + Integer.toHexString(hash) + eol, StringEncoding.ASCII);
+		} else {
+			stream.writeString(name + eol, StringEncoding.ASCII);
+		}
+	}
+	
+	/** Calls the action for every hash that has a name in this registry, not counting the snapshot. */
+	void forEachName(ObjIntConsumer<String> action) {
+		ensureLoaded();
+		for (int i = 0; i < nameStrings.length; i++) {
+			if (nameStrings[i] != -1) {
+				action.accept(arena.decode(nameStrings[i]), nameHashes[i]);
+			}
+		}
+	}
+	
+	/** Calls the action for every name that has a hash in this registry, not counting the snapshot. */
+	void forEachHash(ObjIntConsumer<String> action) {
+		ensureLoaded();
+		for (int i = 0; i < keyStrings.length; i++) {
+			if (keyStrings[i] != -1) {
+				action.accept(arena.decode(keyStrings[i]), keyValues[i]);
 			}
 		}
 	}
 
 	public boolean isEmpty() {
-		return names.isEmpty() && hashes.isEmpty();
+		ensureLoaded();
+		return nameCount == 0 && keyCount == 0 && (snapshot == null || snapshot.isEmpty());
 	}
 
 	public Collection<String> getNames() {
-		return names.values();
+		ensureLoaded();
+		List<String> result = new ArrayList<String>(nameCount + (snapshot == null ? 0 : snapshot.getNameCount()));
+		if (snapshot != null) {
+			for (int i = 0; i < snapshot.getNameCount(); i++) {
+				if (nameStrings[findNameSlot(snapshot.getNameHash(i))] == -1) {
+					result.add(snapshot.getNameAt(i));
+				}
+			}
+		}
+		forEachName((name, hash) -> result.add(name));
+		return result;
 	}
 }
@@ -0,0 +1,342 @@
+/****************************************************************************
+* Copyright (C) 2018 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+
+package sporemodder.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import sporemodder.HashManager;
+
+/**
+ * A registry in a compact binary form, so it can be loaded without parsing the text file. The file is memory-mapped and
+ * searched where it is: it has the hashes of the registry, sorted, the names, also sorted, and a pool with the text of every string.
+ * <p>
+ * Snapshots are written by the build next to the text registries, see {@link #main(String[])}, and they are only used
+ * while they are newer than the text files, so editing a text registry is enough to make the program read it again.
+ * <p>
+ * The file is a header followed by these arrays of big-endian integers, and then the pool:
+ * <li>The offset of every string in the pool, and one more with the size of the pool.
+ * <li>The hashes that have a name, sorted, and the string of each one.
+ * <li>The strings of the names that have a hash, sorted by their UTF-8 bytes, and the hash of each one.
+ */
+public class NameRegistrySnapshot {
+
+	/** The extension of snapshot files, which replaces the extension of the text registry. */
+	public static final String EXTENSION = ".bin";
+
+	private static final int MAGIC = 0x53524547;  // 'SREG'
+	/** Version 2 is written from registries read as UTF-8; version 1 used the default charset of the machine that wrote it. */
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 4 * 6;
+
+	private final int nameCount;
+	private final int hashCount;
+	private final IntBuffer stringOffsets;
+	private final IntBuffer nameHashes;
+	private final IntBuffer nameStrings;
+	private final IntBuffer hashStrings;
+	private final IntBuffer hashValues;
+	private final ByteBuffer pool;
+	/** The names that have been requested already, by position in the sorted hashes. */
+	private final String[] nameCache;
+
+	private NameRegistrySnapshot(ByteBuffer buffer) throws IOException {
+		if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a registry snapshot");
+		}
+		if (buffer.getInt(4) != VERSION) {
+			throw new IOException("Unsupported registry snapshot version " + buffer.getInt(4));
+		}
+		int stringCount = buffer.getInt(8);
+		nameCount = buffer.getInt(12);
+		hashCount = buffer.getInt(16);
+		int poolSize = buffer.getInt(20);
+
+		long expectedSize = HEADER_SIZE + 4L * (stringCount + 1 + 2 * nameCount + 2 * hashCount) + poolSize;
+		if (stringCount < 0 || nameCount < 0 || hashCount < 0 || poolSize < 0 || expectedSize != buffer.remaining()) {
+			throw new IOException("Registry snapshot is corrupt");
+		}
+
+		int position = HEADER_SIZE;
+		stringOffsets = slice(buffer, position, 4 * (stringCount + 1)).asIntBuffer();
+		position += 4 * (stringCount + 1);
+		nameHashes = slice(buffer, position, 4 * nameCount).asIntBuffer();
+		position += 4 * nameCount;
+		nameStrings = slice(buffer, position, 4 * nameCount).asIntBuffer();
+		position += 4 * nameCount;
+		hashStrings = slice(buffer, position, 4 * hashCount).asIntBuffer();
+		position += 4 * hashCount;
+		hashValues = slice(buffer, position, 4 * hashCount).asIntBuffer();
+		position += 4 * hashCount;
+		pool = slice(buffer, position, poolSize);
+		nameCache = new String[nameCount];
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int position, int size) {
+		ByteBuffer result = buffer.duplicate();
+		result.position(position);
+		result.limit(position + size);
+		return result.slice();
+	}
+
+	/**
+	 * Memory-maps a snapshot file.
+	 * @throws IOException If the file cannot be read or is not a valid snapshot.
+	 */
+	public static NameRegistrySnapshot open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// The mapping stays valid after the channel is closed
+			return new NameRegistrySnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/** Returns the name of the snapshot file of a text registry, such as <code>reg_file.bin</code> for <code>reg_file.txt</code>. */
+	public static String getSnapshotName(String registryFileName) {
+		int dot = registryFileName.lastIndexOf('.');
+		return (dot == -1 ? registryFileName : registryFileName.substring(0, dot)) + EXTENSION;
+	}
+
+	/**
+	 * Tells whether a snapshot can be used instead of the given text files: it must exist and be newer than every one of them.
+	 * Text files that do not exist are ignored, so a snapshot can be distributed on its own.
+	 */
+	public static boolean isUpToDate(File snapshotFile, File... textFiles) {
+		if (!snapshotFile.isFile()) {
+			return false;
+		}
+		long time = snapshotFile.lastModified();
+		for (File textFile : textFiles) {
+			if (textFile.exists() && textFile.lastModified() > time) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String getString(int index) {
+		int start = stringOffsets.get(index);
+		int end = stringOffsets.get(index + 1);
+		byte[] bytes = new byte[end - start];
+		ByteBuffer data = pool.duplicate();
+		data.position(start);
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Compares a string of the pool with the given UTF-8 bytes, in the order used to sort the names. */
+	private int compareString(int index, byte[] bytes) {
+		int start = stringOffsets.get(index);
+		int length = stringOffsets.get(index + 1) - start;
+		int count = Math.min(length, bytes.length);
+		for (int i = 0; i < count; i++) {
+			int result = Integer.compare(pool.get(start + i) & 0xFF, bytes[i] & 0xFF);
+			if (result != 0) {
+				return result;
+			}
+		}
+		return Integer.compare(length, bytes.length);
+	}
+
+	/** Returns the name assigned to the given hash, or null if there is none. The same object is returned every time. */
+	public String getName(int hash) {
+		int low = 0;
+		int high = nameCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int value = nameHashes.get(middle);
+			if (value < hash) {
+				low = middle + 1;
+			} else if (value > hash) {
+				high = middle - 1;
+			} else {
+				String name = nameCache[middle];
+				if (name == null) {
+					// Several threads might create the string at the same time, but they are all equal
+					name = getString(nameStrings.get(middle));
+					nameCache[middle] = name;
+				}
+				return name;
+			}
+		}
+		return null;
+	}
+
+	/** Returns the hash assigned to the given name, or null if there is none. Like {@link NameRegistry#getHash(String)}, this does not calculate the hash. */
+	public Integer getHash(String name) {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int low = 0;
+		int high = hashCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int result = compareString(hashStrings.get(middle), bytes);
+			if (result < 0) {
+				low = middle + 1;
+			} else if (result > 0) {
+				high = middle - 1;
+			} else {
+				return hashValues.get(middle);
+			}
+		}
+		return null;
+	}
+
+	/** Returns the number of hashes that have a name. */
+	public int getNameCount() {
+		return nameCount;
+	}
+
+	/** Returns the hash of the given name entry; entries are sorted by hash. */
+	public int getNameHash(int index) {
+		return nameHashes.get(index);
+	}
+
+	/** Returns the name of the given name entry. */
+	public String getNameAt(int index) {
+		return getString(nameStrings.get(index));
+	}
+
+	public boolean isEmpty() {
+		return nameCount == 0 && hashCount == 0;
+	}
+
+	/**
+	 * Writes the contents of a registry as a snapshot. The file is written into a temporary file first and then moved,
+	 * so a program that starts at the same time never maps a partial snapshot.
+	 * @param registry A registry read from text files; it cannot use a snapshot itself.
+	 */
+	public static void write(NameRegistry registry, File file) throws IOException {
+		if (registry.snapshot != null) {
+			throw new IllegalArgumentException("Cannot write a snapshot of a registry that uses a snapshot");
+		}
+		Map<String, Integer> stringIndices = new HashMap<String, Integer>();
+		List<byte[]> strings = new ArrayList<byte[]>();
+
+		List<String> hashNames = new ArrayList<String>();
+		List<Integer> hashes = new ArrayList<Integer>();
+		registry.forEachName((name, hash) -> {
+			hashNames.add(name);
+			hashes.add(hash);
+		});
+		Integer[] hashOrder = new Integer[hashes.size()];
+		for (int i = 0; i < hashOrder.length; i++) {
+			hashOrder[i] = i;
+		}
+		Arrays.sort(hashOrder, (a, b) -> Integer.compare(hashes.get(a), hashes.get(b)));
+		int[] sortedHashes = new int[hashOrder.length];
+		int[] hashNameStrings = new int[hashOrder.length];
+		for (int i = 0; i < hashOrder.length; i++) {
+			sortedHashes[i] = hashes.get(hashOrder[i]);
+			hashNameStrings[i] = addString(hashNames.get(hashOrder[i]), stringIndices, strings);
+		}
+
+		List<String> sortedNames = new ArrayList<String>();
+		List<Integer> nameHashes = new ArrayList<Integer>();
+		registry.forEachHash((name, hash) -> {
+			sortedNames.add(name);
+			nameHashes.add(hash);
+		});
+		byte[][] nameBytes = new byte[sortedNames.size()][];
+		Integer[] order = new Integer[sortedNames.size()];
+		for (int i = 0; i < order.length; i++) {
+			nameBytes[i] = sortedNames.get(i).getBytes(StandardCharsets.UTF_8);
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(nameBytes[a], nameBytes[b]));
+		int[] nameStringIndices = new int[order.length];
+		for (int i = 0; i < order.length; i++) {
+			nameStringIndices[i] = addString(sortedNames.get(order[i]), stringIndices, strings);
+		}
+
+		int poolSize = 0;
+		for (byte[] string : strings) {
+			poolSize += string.length;
+		}
+
+		File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile.toPath()), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(strings.size());
+			out.writeInt(sortedHashes.length);
+			out.writeInt(order.length);
+			out.writeInt(poolSize);
+
+			int offset = 0;
+			for (byte[] string : strings) {
+				out.writeInt(offset);
+				offset += string.length;
+			}
+			out.writeInt(offset);
+
+			for (int hash : sortedHashes) {
+				out.writeInt(hash);
+			}
+			for (int index : hashNameStrings) {
+				out.writeInt(index);
+			}
+			for (int index : nameStringIndices) {
+				out.writeInt(index);
+			}
+			for (int i = 0; i < order.length; i++) {
+				out.writeInt(nameHashes.get(order[i]));
+			}
+			for (byte[] string : strings) {
+				out.write(string);
+			}
+		}
+		Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static int addString(String string, Map<String, Integer> stringIndices, List<byte[]> strings) {
+		Integer index = stringIndices.get(string);
+		if (index == null) {
+			index = strings.size();
+			stringIndices.put(string, index);
+			strings.add(string.getBytes(StandardCharsets.UTF_8));
+		}
+		return index;
+	}
+
+	/**
+	 * Writes the snapshots of the registries in the given folder, next to their text files. This is run by the build:
+	 * <pre>java -cp build sporemodder.util.NameRegistrySnapshot registries</pre>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: NameRegistrySnapshot <registries folder>");
+			System.exit(1);
+		}
+		new HashManager().writeRegistrySnapshots(new File(args[0]));
+	}
+}
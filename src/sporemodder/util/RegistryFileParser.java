@@ -0,0 +1,326 @@
+/****************************************************************************
+* Copyright (C) 2018 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+
+package sporemodder.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import sporemodder.HashManager;
+
+/**
+ * Reads text registry files with several threads. The file is memory-mapped and split into chunks of whole lines, and every
+ * chunk is parsed by a different thread into a list of entries. Then the entries are added to the registry in the order
+ * of the file, so later lines replace earlier ones, as when the file is read line by line.
+ * <p>
+ * Most lines are an ASCII name, optionally followed by a tab and a hexadecimal hash, and they are parsed directly from the
+ * bytes of the file without creating any string. Anything else, like lines with other characters or hashes in other formats,
+ * is left to {@link NameRegistry#parseLine(String)} and {@link HashManager#int32(String)}, so the result is always the same
+ * as reading the file as UTF-8 text with {@link NameRegistry#read(java.io.BufferedReader)}.
+ */
+final class RegistryFileParser {
+
+	/** Files are not split into chunks smaller than this, as starting the threads would take longer than parsing them. */
+	private static final int MIN_CHUNK_SIZE = 256 * 1024;
+
+	/** A name, whose hash is the hash of the name. */
+	private static final int NAME = 0;
+	/** A name and a hexadecimal hash. */
+	private static final int NAME_AND_HASH = 1;
+	/** A name and a hash in another format, which is parsed by {@link HashManager#int32(String)}. */
+	private static final int NAME_AND_HASH_STRING = 2;
+	/** A whole line that is parsed by {@link NameRegistry#parseLine(String)}. */
+	private static final int LINE = 3;
+
+	/** Every entry has: its kind, the start and length of the name or line, and the hash or the start and length of the hash. */
+	private static final int ENTRY_SIZE = 5;
+
+	/** The bytes of a chunk of the file and the entries found in it. */
+	private static class Chunk {
+		private final byte[] bytes;
+		private int[] entries = new int[ENTRY_SIZE * 256];
+		private int entryCount;
+		/** The total length of the names. */
+		private int textSize;
+
+		private Chunk(byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private void add(int kind, int start, int length, int value1, int value2) {
+			int position = entryCount * ENTRY_SIZE;
+			if (position + ENTRY_SIZE > entries.length) {
+				entries = Arrays.copyOf(entries, entries.length * 2);
+			}
+			entries[position] = kind;
+			entries[position + 1] = start;
+			entries[position + 2] = length;
+			entries[position + 3] = value1;
+			entries[position + 4] = value2;
+			entryCount++;
+			textSize += length;
+		}
+	}
+
+	/** Reads all the entries of a registry file into the registry. */
+	static void read(NameRegistry registry, File file) throws IOException {
+		// The hashes of names are calculated with lower case characters; only in these languages the lower case
+		// of an ASCII letter is not an ASCII letter, so the names are left to HashManager.fnvHash
+		String language = Locale.getDefault().getLanguage();
+		boolean asciiLowerCase = !language.equals("tr") && !language.equals("az");
+
+		Chunk[] chunks;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Registry file is too big: " + file.getAbsolutePath());
+			}
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int chunkCount = (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), size / MIN_CHUNK_SIZE));
+			int[] bounds = findChunkBounds(buffer, chunkCount);
+
+			ByteBuffer[] views = new ByteBuffer[chunkCount];
+			for (int i = 0; i < chunkCount; i++) {
+				views[i] = buffer.duplicate();
+				views[i].position(bounds[i]);
+				views[i].limit(bounds[i + 1]);
+			}
+			chunks = new Chunk[chunkCount];
+			if (chunkCount == 1) {
+				chunks[0] = parseChunk(views[0], asciiLowerCase);
+			}
+			else {
+				parseChunks(views, chunks, asciiLowerCase);
+			}
+		}
+
+		// Entries are added in the order of the file, and only here, so the registry is only modified by this thread
+		HashManager hashManager = registry.hashManager;
+		int entryCount = 0;
+		int textSize = 0;
+		for (Chunk chunk : chunks) {
+			entryCount += chunk.entryCount;
+			textSize += chunk.textSize;
+		}
+		registry.ensureCapacity(entryCount, textSize);
+		for (Chunk chunk : chunks) {
+			byte[] bytes = chunk.bytes;
+			int[] entries = chunk.entries;
+			for (int i = 0; i < chunk.entryCount * ENTRY_SIZE; i += ENTRY_SIZE) {
+				int start = entries[i + 1];
+				int length = entries[i + 2];
+				switch (entries[i]) {
+				case NAME:
+					registry.addEntry(registry.addString(bytes, start, length), entries[i + 3]);
+					break;
+				case NAME_AND_HASH:
+					registry.addEntry(new String(bytes, start, length, StandardCharsets.ISO_8859_1), registry.addString(bytes, start, length), entries[i + 3]);
+					break;
+				case NAME_AND_HASH_STRING:
+					int hash = hashManager.int32(new String(bytes, entries[i + 3], entries[i + 4], StandardCharsets.ISO_8859_1));
+					registry.addEntry(new String(bytes, start, length, StandardCharsets.ISO_8859_1), registry.addString(bytes, start, length), hash);
+					break;
+				default:
+					// Registries are UTF-8 files; the default charset would give different names and hashes on each machine
+					registry.parseLine(new String(bytes, start, length, StandardCharsets.UTF_8));
+					break;
+				}
+			}
+		}
+	}
+
+	/** Splits the file in chunks of about the same size that end at the end of a line; chunk <code>i</code> goes from <code>bounds[i]</code> to <code>bounds[i + 1]</code>. */
+	private static int[] findChunkBounds(ByteBuffer buffer, int chunkCount) {
+		int size = buffer.limit();
+		int[] bounds = new int[chunkCount + 1];
+		bounds[chunkCount] = size;
+		for (int i = 1; i < chunkCount; i++) {
+			int position = Math.max(bounds[i - 1], (int) ((long) size * i / chunkCount));
+			while (position < size && !isLineEnd(buffer.get(position))) {
+				position++;
+			}
+			bounds[i] = Math.min(size, position + 1);
+		}
+		return bounds;
+	}
+
+	/** Parses every chunk but the first one in a different thread, and the first one in this thread. */
+	private static void parseChunks(ByteBuffer[] views, Chunk[] chunks, boolean asciiLowerCase) throws IOException {
+		ExecutorService executor = Executors.newFixedThreadPool(views.length - 1, runnable -> {
+			Thread thread = new Thread(runnable, "registry-parser");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<Future<Chunk>> results = new ArrayList<Future<Chunk>>();
+			for (int i = 1; i < views.length; i++) {
+				ByteBuffer view = views[i];
+				results.add(executor.submit(() -> parseChunk(view, asciiLowerCase)));
+			}
+			chunks[0] = parseChunk(views[0], asciiLowerCase);
+			for (int i = 1; i < views.length; i++) {
+				chunks[i] = results.get(i - 1).get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading a registry");
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	private static boolean isLineEnd(byte b) {
+		return b == '\n' || b == '\r';
+	}
+
+	/** Copies a chunk of the file and finds its entries. */
+	private static Chunk parseChunk(ByteBuffer view, boolean asciiLowerCase) {
+		byte[] bytes = new byte[view.remaining()];
+		view.get(bytes);
+		Chunk chunk = new Chunk(bytes);
+
+		int lineStart = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			if (isLineEnd(bytes[i])) {
+				parseLine(chunk, lineStart, i, asciiLowerCase);
+				lineStart = i + 1;
+			}
+		}
+		parseLine(chunk, lineStart, bytes.length, asciiLowerCase);
+		return chunk;
+	}
+
+	/** Finds the entry of a line, if it has one; this does the same as {@link NameRegistry#parseLine(String)}. */
+	private static void parseLine(Chunk chunk, int start, int end, boolean asciiLowerCase) {
+		byte[] bytes = chunk.bytes;
+
+		// Remove the comment
+		int commentEnd = end;
+		for (int i = start; i < end; i++) {
+			if (bytes[i] < 0) {
+				chunk.add(LINE, start, end - start, 0, 0);
+				return;
+			}
+			if (commentEnd == end && bytes[i] == '/' && i + 1 < end && bytes[i + 1] == '/') {
+				commentEnd = i;
+			}
+		}
+		end = commentEnd;
+
+		// Like String.trim(), this removes spaces and control characters
+		while (start < end && bytes[start] <= ' ') start++;
+		while (end > start && bytes[end - 1] <= ' ') end--;
+
+		if (start == end || bytes[start] == '#') {
+			return;
+		}
+
+		int tab = indexOf(bytes, start, end, (byte) '\t');
+		if (tab == -1) {
+			if (asciiLowerCase) {
+				chunk.add(NAME, start, end - start, fnvHash(bytes, start, end), 0);
+			} else {
+				chunk.add(LINE, start, end - start, 0, 0);
+			}
+			return;
+		}
+
+		int nameEnd = tab;
+		while (nameEnd > start && bytes[nameEnd - 1] <= ' ') nameEnd--;
+
+		int hashStart = tab + 1;
+		int hashEnd = indexOf(bytes, hashStart, end, (byte) '\t');
+		if (hashEnd == -1) {
+			hashEnd = end;
+		}
+		while (hashStart < hashEnd && bytes[hashStart] <= ' ') hashStart++;
+		while (hashEnd > hashStart && bytes[hashEnd - 1] <= ' ') hashEnd--;
+
+		long hash = parseHex(bytes, hashStart, hashEnd);
+		if (hash != -1) {
+			chunk.add(NAME_AND_HASH, start, nameEnd - start, (int) hash, 0);
+		} else {
+			chunk.add(NAME_AND_HASH_STRING, start, nameEnd - start, hashStart, hashEnd - hashStart);
+		}
+	}
+
+	private static int indexOf(byte[] bytes, int start, int end, byte value) {
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** Parses a hash like <code>0x6e62ba</code>, with up to 8 digits, or returns -1 if it is written in any other way. */
+	private static long parseHex(byte[] bytes, int start, int end) {
+		int digits = end - start - 2;
+		if (digits < 1 || digits > 8 || bytes[start] != '0' || bytes[start + 1] != 'x') {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start + 2; i < end; i++) {
+			int digit = Character.digit(bytes[i], 16);
+			if (digit == -1) {
+				return -1;
+			}
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/** The same as {@link HashManager#fnvHash(String)}, for a name that only has ASCII characters. */
+	private static int fnvHash(byte[] bytes, int start, int end) {
+		int rez = 0x811C9DC5;
+		for (int i = start; i < end; i++) {
+			int c = bytes[i];
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			rez *= 0x1000193;
+			rez ^= c;
+		}
+		return rez;
+	}
+}
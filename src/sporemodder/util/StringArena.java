@@ -0,0 +1,187 @@
+/****************************************************************************
+* Copyright (C) 2018 Eric Mor
+*
+* This file is part of SporeModder FX.
+*
+* SporeModder FX is free software: you can redistribute it and/or modify
+* it under the terms of the GNU General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+* GNU General Public License for more details.
+*
+* You should have received a copy of the GNU General Public License
+* along with this program.  If not, see <http://www.gnu.org/licenses/>.
+****************************************************************************/
+
+package sporemodder.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Many strings packed in a single byte array, identified by their index. Strings that only have Latin-1 characters
+ * take one byte per character, the rest take two.
+ * <p>
+ * A <code>String</code> is only created the first time a string is requested with {@link #get(int)}, and then it is
+ * kept, so requesting it again does not allocate anything. Strings can be requested by several threads at the same time
+ * once no more strings are added.
+ * <p>
+ * The kept strings take memory on top of the packed bytes, so once every string has been requested the arena takes more
+ * memory than a plain array of strings. Registries only request the names that are found in the packages, which are
+ * a small part of them; {@link #decode(int)} can be used for strings that are not needed again.
+ */
+final class StringArena {
+
+	private byte[] data = new byte[256];
+	private int dataSize;
+	/** Where every string starts in the data; the string <code>i</code> ends where <code>i + 1</code> starts. */
+	private int[] offsets = new int[17];
+	private int count;
+	/** The strings that take two bytes per character. */
+	private final BitSet wide = new BitSet();
+	/** The strings that have been requested already. */
+	private String[] cache = new String[16];
+
+	int size() {
+		return count;
+	}
+
+	void clear() {
+		data = new byte[256];
+		dataSize = 0;
+		offsets = new int[17];
+		count = 0;
+		wide.clear();
+		cache = new String[16];
+	}
+
+	/** Frees the space that was reserved for more strings; it is used once all the strings of a file have been added. */
+	void trimToSize() {
+		data = Arrays.copyOf(data, dataSize);
+		offsets = Arrays.copyOf(offsets, count + 1);
+		cache = Arrays.copyOf(cache, count);
+	}
+
+	/** Makes room for the given number of strings, with the given total size in bytes. */
+	void ensureCapacity(int strings, int byteLength) {
+		if (dataSize + byteLength > data.length) {
+			data = Arrays.copyOf(data, dataSize + byteLength);
+		}
+		if (count + strings + 1 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, count + strings + 1);
+			cache = Arrays.copyOf(cache, offsets.length - 1);
+		}
+	}
+
+	/** Makes room for one more string of the given size. */
+	private void reserve(int byteLength) {
+		if (dataSize + byteLength > data.length) {
+			data = Arrays.copyOf(data, Math.max(Math.max(data.length * 2, 256), dataSize + byteLength));
+		}
+		if (count + 2 > offsets.length) {
+			offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, 17));
+			cache = Arrays.copyOf(cache, offsets.length - 1);
+		}
+	}
+
+	/** Adds a string and returns its index. */
+	int add(String string) {
+		int length = string.length();
+		boolean isWide = false;
+		for (int i = 0; i < length; i++) {
+			if (string.charAt(i) > 0xFF) {
+				isWide = true;
+				break;
+			}
+		}
+		int byteLength = isWide ? length * 2 : length;
+		reserve(byteLength);
+
+		if (isWide) {
+			for (int i = 0; i < length; i++) {
+				char c = string.charAt(i);
+				data[dataSize + 2 * i] = (byte) (c >>> 8);
+				data[dataSize + 2 * i + 1] = (byte) c;
+			}
+			wide.set(count);
+		} else {
+			for (int i = 0; i < length; i++) {
+				data[dataSize + i] = (byte) string.charAt(i);
+			}
+		}
+		dataSize += byteLength;
+		offsets[++count] = dataSize;
+		return count - 1;
+	}
+
+	/** Adds a string that only has ASCII characters, taking it from the given bytes, and returns its index. */
+	int add(byte[] bytes, int offset, int length) {
+		reserve(length);
+		System.arraycopy(bytes, offset, data, dataSize, length);
+		dataSize += length;
+		offsets[++count] = dataSize;
+		return count - 1;
+	}
+
+	/**
+	 * Returns the string with the given index. This is usually the same object every time, but not always: the cache is
+	 * filled without synchronization, so threads that request a string at the same time might each create their own
+	 * copy, or not see the one created by another thread. This is safe because the copies are equal and <code>String</code>
+	 * is immutable, so a thread can never see a partially created string.
+	 */
+	String get(int index) {
+		String string = cache[index];
+		if (string == null) {
+			// A data race, but a harmless one; see above
+			string = decode(index);
+			cache[index] = string;
+		}
+		return string;
+	}
+
+	/** Returns a new <code>String</code> with the string of the given index, without keeping it. */
+	String decode(int index) {
+		int start = offsets[index];
+		int end = offsets[index + 1];
+		if (!wide.get(index)) {
+			return new String(data, start, end - start, StandardCharsets.ISO_8859_1);
+		}
+		char[] chars = new char[(end - start) / 2];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) (((data[start + 2 * i] & 0xFF) << 8) | (data[start + 2 * i + 1] & 0xFF));
+		}
+		return new String(chars);
+	}
+
+	/** Tells whether the string with the given index is equal to the given one, without creating a <code>String</code>. */
+	boolean equals(int index, String string) {
+		int start = offsets[index];
+		int length = string.length();
+		if (!wide.get(index)) {
+			if (offsets[index + 1] - start != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if ((data[start + i] & 0xFF) != string.charAt(i)) {
+					return false;
+				}
+			}
+		} else {
+			if (offsets[index + 1] - start != length * 2) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				char c = (char) (((data[start + 2 * i] & 0xFF) << 8) | (data[start + 2 * i + 1] & 0xFF));
+				if (c != string.charAt(i)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}